@@ -0,0 +1,152 @@
+package cn.hzw.graffiti.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cn.hzw.graffiti.core.ArrowGeometry;
+
+/**
+ * 绘制箭头时的几何计算：预先计算sin/cos的ArrowGeometry与原来DrawUtil.drawArrow()中每次调用三角函数的rotateVec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ArrowGeometryBenchmark {
+
+    private static final int ARROWS = 64;
+
+    private final float[] mCoords = new float[ARROWS * 4];
+    private final float[] mWidths = new float[ARROWS];
+    private final ArrowGeometry mGeometry = new ArrowGeometry();
+    private final float[] mVertices = new float[ArrowGeometry.VERTEX_COUNT];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < mCoords.length; i++) {
+            mCoords[i] = random.nextFloat() * 2000;
+        }
+        for (int i = 0; i < ARROWS; i++) {
+            mWidths[i] = 5 + random.nextInt(60);
+        }
+    }
+
+    /**
+     * 拖动箭头时线宽不变，箭头大小的缓存一直命中
+     */
+    @Benchmark
+    public float arrowSameWidth() {
+        float sum = 0;
+        for (int i = 0; i < ARROWS; i++) {
+            int j = i * 4;
+            if (mGeometry.compute(mCoords[j], mCoords[j + 1], mCoords[j + 2], mCoords[j + 3], 30, mVertices)) {
+                sum += mVertices[0] + mVertices[7];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 重新绘制不同线宽的箭头，每次都重新计算箭头大小
+     */
+    @Benchmark
+    public float arrowMixedWidth() {
+        float sum = 0;
+        for (int i = 0; i < ARROWS; i++) {
+            int j = i * 4;
+            if (mGeometry.compute(mCoords[j], mCoords[j + 1], mCoords[j + 2], mCoords[j + 3], mWidths[i], mVertices)) {
+                sum += mVertices[0] + mVertices[7];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 原来的箭头计算方式，线宽不变，与arrowSameWidth()对比
+     */
+    @Benchmark
+    public float legacyArrowSameWidth() {
+        float sum = 0;
+        for (int i = 0; i < ARROWS; i++) {
+            int j = i * 4;
+            legacyArrow(mCoords[j], mCoords[j + 1], mCoords[j + 2], mCoords[j + 3], 30, mVertices);
+            sum += mVertices[0] + mVertices[7];
+        }
+        return sum;
+    }
+
+    /**
+     * 原来的箭头计算方式，线宽不同，与arrowMixedWidth()对比
+     */
+    @Benchmark
+    public float legacyArrowMixedWidth() {
+        float sum = 0;
+        for (int i = 0; i < ARROWS; i++) {
+            int j = i * 4;
+            legacyArrow(mCoords[j], mCoords[j + 1], mCoords[j + 2], mCoords[j + 3], mWidths[i], mVertices);
+            sum += mVertices[0] + mVertices[7];
+        }
+        return sum;
+    }
+
+    /**
+     * 原来DrawUtil.drawArrow()中的计算，逐行保留：每个箭头atan和sqrt各两次，4次rotateVec，每次分配结果数组
+     */
+    private static void legacyArrow(float sx, float sy, float ex, float ey, float arrowSize, float[] out) {
+        double H = arrowSize; // 箭头高度
+        double L = arrowSize / 2; // 底边的一半
+
+        double awrad = Math.atan(L / 2 / H); // 箭头角度
+        double arraow_len = Math.sqrt(L / 2 * L / 2 + H * H) - 5; // 箭头的长度
+        double[] arrXY_1 = rotateVec(ex - sx, ey - sy, awrad, true,
+                arraow_len);
+        double[] arrXY_2 = rotateVec(ex - sx, ey - sy, -awrad, true,
+                arraow_len);
+        out[0] = (float) (ex - arrXY_1[0]); // (x3,y3)是第一端点
+        out[1] = (float) (ey - arrXY_1[1]);
+        out[2] = (float) (ex - arrXY_2[0]); // (x4,y4)是第二端点
+        out[3] = (float) (ey - arrXY_2[1]);
+
+        awrad = Math.atan(L / H); // 箭头角度
+        arraow_len = Math.sqrt(L * L + H * H); // 箭头的长度
+        arrXY_1 = rotateVec(ex - sx, ey - sy, awrad, true, arraow_len);
+        arrXY_2 = rotateVec(ex - sx, ey - sy, -awrad, true, arraow_len);
+        out[4] = (float) (ex - arrXY_1[0]);
+        out[5] = (float) (ey - arrXY_1[1]);
+        out[6] = (float) (ex - arrXY_2[0]);
+        out[7] = (float) (ey - arrXY_2[1]);
+    }
+
+    /**
+     * 原来DrawUtil中每次调用都分配结果数组的rotateVec
+     */
+    private static double[] rotateVec(float px, float py, double ang,
+                                      boolean isChLen, double newLen) {
+        double mathstr[] = new double[2];
+        // 矢量旋转函数，参数含义分别是x分量、y分量、旋转角、是否改变长度、新长度
+        double vx = px * Math.cos(ang) - py * Math.sin(ang);
+        double vy = px * Math.sin(ang) + py * Math.cos(ang);
+        if (isChLen) {
+            double d = Math.sqrt(vx * vx + vy * vy);
+            vx = vx / d * newLen;
+            vy = vy / d * newLen;
+        }
+        mathstr[0] = vx;
+        mathstr[1] = vy;
+        return mathstr;
+    }
+}
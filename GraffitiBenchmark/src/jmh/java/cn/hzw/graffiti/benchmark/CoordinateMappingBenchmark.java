@@ -0,0 +1,104 @@
+package cn.hzw.graffiti.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cn.hzw.graffiti.core.GraffitiMath;
+
+/**
+ * 每个移动事件的坐标换算：把一批采样点（包括历史采样点）从屏幕坐标转换成图片坐标和画布坐标
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CoordinateMappingBenchmark {
+
+    /** 一个移动事件中的采样点个数，x和y交替存放 */
+    private static final int POINTS = 64;
+
+    private final float[] mTouchPoints = new float[POINTS * 2];
+    private final float[] mOut = new float[POINTS * 2];
+    private float mScale = 0.4f * 1.7f;
+    private float mCentreTranX = 12, mCentreTranY = 240;
+    private float mTransX = -35.5f, mTransY = 18.25f;
+    /** mapPointsBatch()缓存的矩阵及其对应的缩放和平移 */
+    private float mMatrixSx, mMatrixTx, mMatrixTy;
+    private float mMatrixScale, mMatrixTransX, mMatrixTransY;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42); // 固定种子，每次运行的数据相同
+        for (int i = 0; i < mTouchPoints.length; i++) {
+            mTouchPoints[i] = random.nextFloat() * 1080;
+        }
+    }
+
+    @Benchmark
+    public float[] toImage() {
+        for (int i = 0; i < POINTS * 2; i += 2) {
+            mOut[i] = GraffitiMath.toImage(mTouchPoints[i], mCentreTranX, mTransX, mScale);
+            mOut[i + 1] = GraffitiMath.toImage(mTouchPoints[i + 1], mCentreTranY, mTransY, mScale);
+        }
+        return mOut;
+    }
+
+    /**
+     * GraffitiView.mapTouchPoints()的方式：缓存的变换矩阵一次映射整批采样点
+     * android.graphics.Matrix不能在JVM上运行，这里按Matrix.mapPoints()对缩放+平移矩阵的计算（每个坐标一次乘加）展开
+     */
+    @Benchmark
+    public float[] mapPointsBatch() {
+        float scale = mScale;
+        float transX = mCentreTranX + mTransX, transY = mCentreTranY + mTransY;
+        if (scale != mMatrixScale || transX != mMatrixTransX || transY != mMatrixTransY) {
+            // 与mTouchMatrix.setTranslate(-transX, -transY); postScale(1 / scale, 1 / scale)相同
+            mMatrixSx = 1 / scale;
+            mMatrixTx = -transX / scale;
+            mMatrixTy = -transY / scale;
+            mMatrixScale = scale;
+            mMatrixTransX = transX;
+            mMatrixTransY = transY;
+        }
+        mapPoints(mOut, mTouchPoints, POINTS);
+        return mOut;
+    }
+
+    private void mapPoints(float[] dst, float[] src, int count) {
+        float sx = mMatrixSx, tx = mMatrixTx, ty = mMatrixTy;
+        for (int i = 0; i < count * 2; i += 2) {
+            dst[i] = src[i] * sx + tx;
+            dst[i + 1] = src[i + 1] * sx + ty;
+        }
+    }
+
+    @Benchmark
+    public float[] toCanvas() {
+        for (int i = 0; i < POINTS * 2; i++) {
+            mOut[i] = GraffitiMath.toCanvas(mTouchPoints[i], mScale);
+        }
+        return mOut;
+    }
+
+    @Benchmark
+    public float[] toTrans() {
+        for (int i = 0; i < POINTS * 2; i += 2) {
+            mOut[i] = GraffitiMath.toTrans(mTouchPoints[i], mTouchPoints[i + 1], mCentreTranX, mScale);
+            mOut[i + 1] = GraffitiMath.toTrans(mTouchPoints[i + 1], mTouchPoints[i], mCentreTranY, mScale);
+        }
+        return mOut;
+    }
+}
@@ -0,0 +1,70 @@
+package cn.hzw.graffiti.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cn.hzw.graffiti.core.RingHistogram;
+
+/**
+ * 性能统计的开销：每帧记录一次耗时，每隔一段时间统计一次百分位数
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MetricsBenchmark {
+
+    private final RingHistogram mHistogram = new RingHistogram(256);
+    private final long[] mSamples = new long[1024];
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < mSamples.length; i++) {
+            mSamples[i] = 2000000 + random.nextInt(14000000); // 2~16ms
+        }
+        for (int i = 0; i < 256; i++) {
+            mHistogram.record(mSamples[i]);
+        }
+    }
+
+    /**
+     * 开启统计后每次绘制增加的开销
+     */
+    @Benchmark
+    public void record() {
+        mHistogram.record(mSamples[mIndex]);
+        mIndex = (mIndex + 1) & (mSamples.length - 1);
+    }
+
+    /**
+     * 记录一次耗时，包括两次System.nanoTime()
+     */
+    @Benchmark
+    public void recordWithClock() {
+        long start = System.nanoTime();
+        mHistogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * 回调或显示统计结果时计算百分位数
+     */
+    @Benchmark
+    public long percentile() {
+        return mHistogram.getPercentile(50) + mHistogram.getPercentile(95);
+    }
+}
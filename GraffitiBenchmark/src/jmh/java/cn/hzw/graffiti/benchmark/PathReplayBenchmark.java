@@ -0,0 +1,83 @@
+package cn.hzw.graffiti.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.hzw.graffiti.core.PathSink;
+import cn.hzw.graffiti.core.StrokeBuffer;
+
+/**
+ * 撤销时重新绘制N个笔画：生成每个笔画的路径片段并计算包围盒
+ * 路径片段写入只做累加的PathSink，测量的是与平台无关的部分，不包括Canvas的绘制
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PathReplayBenchmark {
+
+    /** 每个笔画的采样点个数 */
+    private static final int POINTS_PER_STROKE = 64;
+
+    @Param({"10", "100", "1000"})
+    public int mStrokeCount;
+
+    private StrokeBuffer[] mStrokes;
+    private final float[] mBounds = new float[4];
+    private final SumSink mSink = new SumSink();
+
+    @Setup
+    public void setup() {
+        mStrokes = new StrokeBuffer[mStrokeCount];
+        float[] xs = new float[POINTS_PER_STROKE], ys = new float[POINTS_PER_STROKE];
+        for (int i = 0; i < mStrokeCount; i++) {
+            StrokeData.fillStroke(xs, ys, i);
+            StrokeBuffer stroke = new StrokeBuffer(false);
+            for (int j = 0; j < POINTS_PER_STROKE; j++) {
+                stroke.addPoint(xs[j], ys[j], j * 8L, 1);
+            }
+            mStrokes[i] = stroke;
+        }
+    }
+
+    @Benchmark
+    public float replay() {
+        mSink.mSum = 0;
+        for (int i = 0; i < mStrokes.length; i++) {
+            mStrokes[i].computeBounds(mBounds);
+            mStrokes[i].appendPath(mSink, 0);
+            mSink.mSum += mBounds[2] - mBounds[0];
+        }
+        return mSink.mSum;
+    }
+
+    /**
+     * 累加坐标，避免路径片段被JIT优化掉
+     */
+    private static class SumSink implements PathSink {
+        float mSum;
+
+        @Override
+        public void moveTo(float x, float y) {
+            mSum += x + y;
+        }
+
+        @Override
+        public void quadTo(float x1, float y1, float x2, float y2) {
+            mSum += x1 + y2;
+        }
+    }
+}
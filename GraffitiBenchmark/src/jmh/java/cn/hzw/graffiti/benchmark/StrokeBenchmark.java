@@ -0,0 +1,61 @@
+package cn.hzw.graffiti.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import cn.hzw.graffiti.core.StrokeBuffer;
+
+/**
+ * 手写笔画的采样点累积，以及手指抬起时的简化
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StrokeBenchmark {
+
+    @Param({"64", "1024"})
+    public int mPointCount;
+
+    @Param({"false", "true"})
+    public boolean mWithPressure;
+
+    private float[] mXs, mYs;
+
+    @Setup
+    public void setup() {
+        mXs = new float[mPointCount];
+        mYs = new float[mPointCount];
+        StrokeData.fillStroke(mXs, mYs, 42);
+    }
+
+    @Benchmark
+    public StrokeBuffer accumulate() {
+        StrokeBuffer stroke = new StrokeBuffer(mWithPressure);
+        for (int i = 0; i < mPointCount; i++) {
+            stroke.addPoint(mXs[i], mYs[i], i * 8L, 0.5f);
+        }
+        return stroke;
+    }
+
+    /**
+     * 累积后按默认的误差简化，减去accumulate的时间即为简化的开销
+     */
+    @Benchmark
+    public int accumulateAndSimplify() {
+        return accumulate().simplify(0.5f);
+    }
+}
@@ -0,0 +1,26 @@
+package cn.hzw.graffiti.benchmark;
+
+import java.util.Random;
+
+/**
+ * 生成确定的手写笔画数据，同样的种子每次生成的笔画相同，使不同提交的结果可以比较
+ */
+class StrokeData {
+
+    /**
+     * 模拟手指移动：方向缓慢变化，每次移动2~8个像素
+     */
+    static void fillStroke(float[] xs, float[] ys, long seed) {
+        Random random = new Random(seed);
+        float x = random.nextFloat() * 1000, y = random.nextFloat() * 1000;
+        double angle = random.nextDouble() * Math.PI * 2;
+        for (int i = 0; i < xs.length; i++) {
+            angle += (random.nextDouble() - 0.5) * 0.6;
+            float step = 2 + random.nextFloat() * 6;
+            x += (float) Math.cos(angle) * step;
+            y += (float) Math.sin(angle) * step;
+            xs[i] = x;
+            ys[i] = y;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 箭头的顶点计算，箭头的角度是固定的，只需要按箭头方向旋转预先计算好的sin/cos
+ * 箭头高度H与底边一半L的比例固定为2:1。缓存上一次的箭头大小，不是线程安全的
+ */
+public class ArrowGeometry {
+
+    /** 箭头两条边相对于箭头方向的夹角 */
+    private static final double ARROW_LINE_ANGLE = Math.atan(0.25), ARROW_HEAD_ANGLE = Math.atan(0.5);
+    private static final double SIN_LINE = Math.sin(ARROW_LINE_ANGLE), COS_LINE = Math.cos(ARROW_LINE_ANGLE);
+    private static final double SIN_HEAD = Math.sin(ARROW_HEAD_ANGLE), COS_HEAD = Math.cos(ARROW_HEAD_ANGLE);
+
+    /** 顶点数组的长度 */
+    public static final int VERTEX_COUNT = 8;
+
+    /** 上一次计算的箭头大小及对应的两条边长度 */
+    private float mArrowSize = -1;
+    private double mLineLen, mHeadLen;
+
+    private void updateArrowSize(float arrowSize) {
+        if (arrowSize == mArrowSize) {
+            return;
+        }
+        double H = arrowSize; // 箭头高度
+        double L = arrowSize / 2; // 底边的一半
+        mLineLen = Math.sqrt(L / 2 * L / 2 + H * H) - 5;
+        mHeadLen = Math.sqrt(L * L + H * H);
+        mArrowSize = arrowSize;
+    }
+
+    /**
+     * 计算箭头的顶点
+     *
+     * @param arrowSize 箭头大小，即线宽
+     * @param out       长度至少为{@link #VERTEX_COUNT}，依次为箭杆三角形的两个端点、箭头三角形的两个端点
+     * @return 起点终点重合、没有方向时返回false
+     */
+    public boolean compute(float sx, float sy, float ex, float ey, float arrowSize, float[] out) {
+        float px = ex - sx, py = ey - sy;
+        double d = Math.sqrt(px * px + py * py);
+        if (d == 0) {
+            return false;
+        }
+        updateArrowSize(arrowSize);
+        double ux = px / d, uy = py / d; // 箭头方向的单位向量
+        rotate(ux, uy, COS_LINE, SIN_LINE, mLineLen, ex, ey, out, 0);
+        rotate(ux, uy, COS_LINE, -SIN_LINE, mLineLen, ex, ey, out, 2);
+        rotate(ux, uy, COS_HEAD, SIN_HEAD, mHeadLen, ex, ey, out, 4);
+        rotate(ux, uy, COS_HEAD, -SIN_HEAD, mHeadLen, ex, ey, out, 6);
+        return true;
+    }
+
+    /**
+     * 把单位向量(ux,uy)旋转后缩放到len，从终点减去，结果写入out[index]和out[index+1]
+     */
+    private static void rotate(double ux, double uy, double cos, double sin, double len,
+                               float ex, float ey, float[] out, int index) {
+        out[index] = (float) (ex - (ux * cos - uy * sin) * len);
+        out[index + 1] = (float) (ey - (ux * sin + uy * cos) * len);
+    }
+}
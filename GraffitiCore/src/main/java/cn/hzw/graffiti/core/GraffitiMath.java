@@ -0,0 +1,83 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 屏幕坐标、画布坐标与图片坐标之间的换算，以及向量运算
+ * scale为图片真实的缩放倍数（适应屏幕的缩放倍数 × 用户缩放的倍数）
+ */
+public final class GraffitiMath {
+
+    private GraffitiMath() {
+    }
+
+    /**
+     * 将屏幕触摸坐标转换成在图片中的坐标
+     *
+     * @param touch      屏幕坐标
+     * @param centreTran 图片居中时的偏移
+     * @param trans      用户的偏移
+     * @param scale      图片真实的缩放倍数
+     */
+    public static float toImage(float touch, float centreTran, float trans, float scale) {
+        return (touch - centreTran - trans) / scale;
+    }
+
+    /**
+     * 坐标换算，在缩放后的画布上绘制时使用
+     */
+    public static float toCanvas(float touch, float scale) {
+        return touch / scale;
+    }
+
+    /**
+     * 计算使图片坐标image显示在屏幕坐标touch处时的偏移
+     */
+    public static float toTrans(float touch, float image, float centreTran, float scale) {
+        return -image * scale + touch - centreTran;
+    }
+
+    /**
+     * 计算向量(px,py)旋转ang角度后的向量，isChLen为true时把长度缩放为newLen，结果写入out
+     */
+    public static double[] rotateVec(float px, float py, double ang, boolean isChLen, double newLen, double[] out) {
+        double vx = px * Math.cos(ang) - py * Math.sin(ang);
+        double vy = px * Math.sin(ang) + py * Math.cos(ang);
+        if (isChLen) {
+            double d = Math.sqrt(vx * vx + vy * vy);
+            vx = vx / d * newLen;
+            vy = vy / d * newLen;
+        }
+        out[0] = vx;
+        out[1] = vy;
+        return out;
+    }
+
+    /**
+     * 把宽×高的图片按比例缩小到最长边不超过maxSize后，value（宽或高）对应的长度，至少为1
+     *
+     * @param maxSize 小于等于0或者图片已经足够小时不缩放，不会放大
+     */
+    public static int fitLongestEdge(int value, int width, int height, int maxSize) {
+        int longest = Math.max(width, height);
+        if (maxSize <= 0 || longest <= maxSize) {
+            return value;
+        }
+        return Math.max(1, Math.round((float) value * maxSize / longest));
+    }
+
+    /**
+     * 计算解码时的采样率（2的幂），使解码后的图片占用的内存不超过maxBytes。
+     * 解码后的边长按向上取整估算，与JPEG解码器一致
+     *
+     * @return 采样到1个像素也超过上限时返回0
+     */
+    public static int sampleSizeToFit(int width, int height, int bytesPerPixel, long maxBytes) {
+        int sampleSize = 1;
+        while ((long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize) * bytesPerPixel > maxBytes) {
+            if (sampleSize >= width && sampleSize >= height) {
+                return 0;
+            }
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,10 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 接收笔画生成的路径片段，由平台实现（如android.graphics.Path）
+ */
+public interface PathSink {
+    void moveTo(float x, float y);
+
+    void quadTo(float x1, float y1, float x2, float y2);
+}
@@ -0,0 +1,38 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 像素的64位FNV-1a哈希，用于比较回放结果是否一致
+ */
+public final class PixelHash {
+
+    /** 初始值 */
+    public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private PixelHash() {
+    }
+
+    /**
+     * 把pixels中从offset开始的count个像素（每个像素按4个字节）累加到hash中
+     */
+    public static long update(long hash, int[] pixels, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            int pixel = pixels[i];
+            hash = (hash ^ (pixel & 0xff)) * PRIME;
+            hash = (hash ^ ((pixel >>> 8) & 0xff)) * PRIME;
+            hash = (hash ^ ((pixel >>> 16) & 0xff)) * PRIME;
+            hash = (hash ^ (pixel >>> 24)) * PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * 累加一个整数，用于把宽高等信息计入哈希
+     */
+    public static long update(long hash, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,100 @@
+package cn.hzw.graffiti.core;
+
+import java.util.Arrays;
+
+/**
+ * 固定容量的环形直方图，只保留最近的capacity个样本
+ * 记录样本只写入数组，不分配内存；统计时才排序。可以在不同线程中记录和读取
+ */
+public class RingHistogram {
+
+    private final long[] mValues;
+    /** 排序用的临时数组，统计时复用 */
+    private final long[] mSorted;
+    private int mIndex;
+    private int mSize;
+    private long mTotalCount;
+
+    public RingHistogram(int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("capacity must be positive: " + capacity);
+        }
+        mValues = new long[capacity];
+        mSorted = new long[capacity];
+    }
+
+    public synchronized void record(long value) {
+        mValues[mIndex] = value;
+        mIndex = (mIndex + 1) % mValues.length;
+        if (mSize < mValues.length) {
+            mSize++;
+        }
+        mTotalCount++;
+    }
+
+    /**
+     * 当前窗口内的样本个数
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * 记录过的样本总数，包括已经被覆盖的
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * 最近一次记录的样本，没有样本时返回0
+     */
+    public synchronized long getLast() {
+        return mSize == 0 ? 0 : mValues[(mIndex - 1 + mValues.length) % mValues.length];
+    }
+
+    public synchronized long getMin() {
+        return mSize == 0 ? 0 : sort()[0];
+    }
+
+    public synchronized long getMax() {
+        return mSize == 0 ? 0 : sort()[mSize - 1];
+    }
+
+    public synchronized long getMean() {
+        if (mSize == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < mSize; i++) {
+            sum += mValues[i];
+        }
+        return sum / mSize;
+    }
+
+    /**
+     * 窗口内样本的百分位数
+     *
+     * @param percentile 0~100
+     */
+    public synchronized long getPercentile(float percentile) {
+        if (mSize == 0) {
+            return 0;
+        }
+        long[] sorted = sort();
+        int index = (int) Math.ceil(percentile / 100 * mSize) - 1;
+        return sorted[Math.max(0, Math.min(mSize - 1, index))];
+    }
+
+    public synchronized void reset() {
+        mIndex = 0;
+        mSize = 0;
+        mTotalCount = 0;
+    }
+
+    private long[] sort() {
+        System.arraycopy(mValues, 0, mSorted, 0, mSize);
+        Arrays.sort(mSorted, 0, mSize);
+        return mSorted;
+    }
+}
@@ -0,0 +1,72 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 保存的图片格式。系统不支持时退回到效果最接近的格式：
+ * WEBP需要4.0（API 14），低版本保存为JPEG；无损WEBP需要10（API 29），低版本保存为PNG。
+ * 编码器以Bitmap.CompressFormat的名字表示，系统版本由调用者传入，不依赖Android
+ */
+public enum SaveFormat {
+    JPEG, // 有损，适合照片
+    PNG, // 无损，质量参数无效
+    WEBP, // 有损，同样质量下比JPEG小
+    WEBP_LOSSLESS; // 无损，大片纯色的截图比PNG小得多，质量参数表示压缩的力度，越大文件越小、编码越慢
+
+    /** 快速编码时无损WEBP的压缩力度 */
+    static final int FAST_EFFORT = 0;
+
+    /**
+     * 指定系统版本上实际使用的编码器，即Bitmap.CompressFormat的名字
+     */
+    public String getEncoderName(int sdkInt) {
+        switch (this) {
+            case PNG:
+                return "PNG";
+            case WEBP:
+                if (sdkInt >= 30) { // 11开始WEBP质量为100时是无损的，明确指定有损
+                    return "WEBP_LOSSY";
+                }
+                return sdkInt >= 14 ? "WEBP" : "JPEG";
+            case WEBP_LOSSLESS:
+                if (sdkInt >= 30) {
+                    return "WEBP_LOSSLESS";
+                }
+                return sdkInt >= 29 ? "WEBP" : "PNG";
+            default:
+                return "JPEG";
+        }
+    }
+
+    /**
+     * 传给Bitmap.compress()的质量
+     *
+     * @param quality    0~100
+     * @param fastEncode 是否快速编码，编码器支持时降低压缩力度换取编码速度，文件会变大；JPEG和PNG没有影响
+     */
+    public int getQuality(int quality, boolean fastEncode, int sdkInt) {
+        switch (this) {
+            case WEBP:
+                if (sdkInt == 29) { // 10的WEBP质量为100时是无损的
+                    return Math.min(quality, 99);
+                }
+                return quality;
+            case WEBP_LOSSLESS:
+                if (sdkInt >= 30) {
+                    return fastEncode ? FAST_EFFORT : quality;
+                }
+                return 100; // 10的WEBP质量为100时才是无损的
+            default:
+                return quality;
+        }
+    }
+
+    /**
+     * 文件的扩展名，与实际使用的编码器一致
+     */
+    public String getExtension(int sdkInt) {
+        String encoder = getEncoderName(sdkInt);
+        if (encoder.equals("PNG")) {
+            return "png";
+        }
+        return encoder.equals("JPEG") ? "jpg" : "webp";
+    }
+}
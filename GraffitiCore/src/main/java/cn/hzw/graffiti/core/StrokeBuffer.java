@@ -0,0 +1,210 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 手写笔画的采样点，连续存放在float数组中：x, y, 时间, [压力]
+ * 时间为相对于第一个采样点的毫秒数。不是线程安全的
+ */
+public class StrokeBuffer {
+    /** 每个采样点占用的float个数 */
+    public static final int STRIDE = 3, STRIDE_PRESSURE = 4;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private float[] mPoints;
+    private int mPointCount;
+    private final int mStride;
+    private long mStartTime;
+
+    /**
+     * @param withPressure 是否记录压力
+     */
+    public StrokeBuffer(boolean withPressure) {
+        mStride = withPressure ? STRIDE_PRESSURE : STRIDE;
+        mPoints = new float[INITIAL_CAPACITY * mStride];
+    }
+
+    /**
+     * 添加采样点
+     *
+     * @param time     采样时间（毫秒）
+     * @param pressure 压力，不记录压力时忽略
+     */
+    public void addPoint(float x, float y, long time, float pressure) {
+        if (mPointCount == 0) {
+            mStartTime = time;
+        }
+        int index = mPointCount * mStride;
+        if (index + mStride > mPoints.length) {
+            float[] points = new float[mPoints.length * 2];
+            System.arraycopy(mPoints, 0, points, 0, index);
+            mPoints = points;
+        }
+        mPoints[index] = x;
+        mPoints[index + 1] = y;
+        mPoints[index + 2] = time - mStartTime;
+        if (mStride == STRIDE_PRESSURE) {
+            mPoints[index + 3] = pressure;
+        }
+        mPointCount++;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public float getX(int i) {
+        return mPoints[i * mStride];
+    }
+
+    public float getY(int i) {
+        return mPoints[i * mStride + 1];
+    }
+
+    /**
+     * 采样时间，相对于第一个采样点的毫秒数
+     */
+    public float getTime(int i) {
+        return mPoints[i * mStride + 2];
+    }
+
+    /**
+     * 压力，没有记录压力时返回1
+     */
+    public float getPressure(int i) {
+        return mStride == STRIDE_PRESSURE ? mPoints[i * mStride + 3] : 1;
+    }
+
+    public boolean hasPressure() {
+        return mStride == STRIDE_PRESSURE;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * 采样点的原始数据，每个采样点占用getStride()个float，只读
+     */
+    public float[] getPoints() {
+        return mPoints;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    /**
+     * 从第from个采样点开始生成路径片段
+     * 每个采样点作为控制点，相邻采样点的中点作为终点，与触摸时绘制的路径一致
+     *
+     * @return 已经生成路径的采样点个数，下次从这里继续
+     */
+    public int appendPath(PathSink sink, int from) {
+        for (int i = from; i < mPointCount; i++) {
+            int index = i * mStride;
+            if (i == 0) {
+                sink.moveTo(mPoints[0], mPoints[1]);
+            } else {
+                float lastX = mPoints[index - mStride], lastY = mPoints[index - mStride + 1];
+                sink.quadTo(lastX, lastY, (mPoints[index] + lastX) / 2, (mPoints[index + 1] + lastY) / 2);
+            }
+        }
+        return mPointCount;
+    }
+
+    /**
+     * 用Ramer-Douglas-Peucker算法删除采样点，删除的点到保留下来的折线的距离不超过tolerance，首尾两点始终保留
+     *
+     * @param tolerance 允许的误差，小于等于0时不简化
+     * @return 删除的采样点个数
+     */
+    public int simplify(float tolerance) {
+        if (mPointCount < 3 || tolerance <= 0) {
+            return 0;
+        }
+        float tolerance2 = tolerance * tolerance;
+        boolean[] keep = new boolean[mPointCount];
+        keep[0] = keep[mPointCount - 1] = true;
+        int[] stack = new int[mPointCount * 2]; // 待处理的区间，用栈代替递归
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = mPointCount - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float ax = getX(first), ay = getY(first);
+            float dx = getX(last) - ax, dy = getY(last) - ay;
+            float len2 = dx * dx + dy * dy;
+            float max = -1;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) { // 找到离线段最远的点
+                float px = getX(i) - ax, py = getY(i) - ay;
+                float dist2;
+                float t = len2 == 0 ? 0 : (px * dx + py * dy) / len2;
+                if (t <= 0) {
+                    dist2 = px * px + py * py;
+                } else if (t >= 1) {
+                    float qx = px - dx, qy = py - dy;
+                    dist2 = qx * qx + qy * qy;
+                } else {
+                    float cross = px * dy - py * dx;
+                    dist2 = cross * cross / len2;
+                }
+                if (dist2 > max) {
+                    max = dist2;
+                    index = i;
+                }
+            }
+            if (index >= 0 && max > tolerance2) {
+                keep[index] = true;
+                stack[top++] = first;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < mPointCount; i++) {
+            if (keep[i]) {
+                if (count != i) {
+                    System.arraycopy(mPoints, i * mStride, mPoints, count * mStride, mStride);
+                }
+                count++;
+            }
+        }
+        int removed = mPointCount - count;
+        mPointCount = count;
+        return removed;
+    }
+
+    /**
+     * 计算采样点（即控制点）的包围盒，曲线一定在其中
+     *
+     * @param out 依次写入left, top, right, bottom
+     * @return 没有采样点时返回false
+     */
+    public boolean computeBounds(float[] out) {
+        if (mPointCount == 0) {
+            return false;
+        }
+        float left = mPoints[0], top = mPoints[1], right = left, bottom = top;
+        for (int i = 1; i < mPointCount; i++) {
+            float x = mPoints[i * mStride], y = mPoints[i * mStride + 1];
+            if (x < left) {
+                left = x;
+            } else if (x > right) {
+                right = x;
+            }
+            if (y < top) {
+                top = y;
+            } else if (y > bottom) {
+                bottom = y;
+            }
+        }
+        out[0] = left;
+        out[1] = top;
+        out[2] = right;
+        out[3] = bottom;
+        return true;
+    }
+}
@@ -0,0 +1,52 @@
+package cn.hzw.graffiti.core;
+
+/**
+ * 把宽×高的图片分成边长为tileSize的图块，按行优先编号，最后一行、一列的图块可能不完整
+ */
+public final class TileGrid {
+
+    private final int mWidth, mHeight, mTileSize;
+    private final int mColumns, mRows;
+
+    public TileGrid(int width, int height, int tileSize) {
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new RuntimeException("invalid grid: " + width + "x" + height + ", tile " + tileSize);
+        }
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mColumns = (width + tileSize - 1) / tileSize;
+        mRows = (height + tileSize - 1) / tileSize;
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    public int getCount() {
+        return mColumns * mRows;
+    }
+
+    public int getLeft(int index) {
+        return (index % mColumns) * mTileSize;
+    }
+
+    public int getTop(int index) {
+        return (index / mColumns) * mTileSize;
+    }
+
+    /**
+     * 图块的右边界（不包含），不超过图片的宽度
+     */
+    public int getRight(int index) {
+        return Math.min(mWidth, getLeft(index) + mTileSize);
+    }
+
+    public int getBottom(int index) {
+        return Math.min(mHeight, getTop(index) + mTileSize);
+    }
+}
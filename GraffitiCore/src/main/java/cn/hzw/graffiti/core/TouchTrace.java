@@ -0,0 +1,323 @@
+package cn.hzw.graffiti.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 涂鸦过程的二进制记录：触摸事件（包括历史采样点）和工具的切换，用于回放和性能测试
+ * 格式：文件头（魔数、版本、图片大小、view大小），之后是若干条记录，每条记录以类型和相对于开始记录的毫秒数开头
+ */
+public final class TouchTrace {
+
+    public static final int MAGIC = 0x47545243; // "GTRC"
+    public static final int VERSION = 1;
+
+    /** 记录结束 */
+    public static final int END = -1;
+    /** 触摸事件 */
+    public static final int MOTION = 1;
+    /** 画笔，参数为Pen的序号 */
+    public static final int PEN = 2;
+    /** 形状，参数为Shape的序号 */
+    public static final int SHAPE = 3;
+    /** 画笔大小 */
+    public static final int PAINT_SIZE = 4;
+    /** 画笔颜色（纯色） */
+    public static final int COLOR = 5;
+    public static final int UNDO = 6;
+    public static final int REDO = 7;
+    public static final int CLEAR = 8;
+    /** 缩放和偏移，参数依次为scale, transX, transY */
+    public static final int TRANSFORM = 9;
+    /** 是否处于移动图片的状态，参数为0或1 */
+    public static final int MOVING = 10;
+
+    /** 单个触摸事件最多的触摸点个数 */
+    public static final int MAX_POINTERS = 16;
+
+    private TouchTrace() {
+    }
+
+    /**
+     * 写入记录。不是线程安全的
+     */
+    public static class Writer {
+        private final DataOutputStream mOut;
+        private final long mStartTime;
+
+        /**
+         * @param startTime 开始记录的时间（毫秒），之后记录的时间都相对于该时间
+         */
+        public Writer(OutputStream out, int imageWidth, int imageHeight, int viewWidth, int viewHeight, long startTime) {
+            mOut = new DataOutputStream(out);
+            mStartTime = startTime;
+            try {
+                mOut.writeInt(MAGIC);
+                mOut.writeInt(VERSION);
+                mOut.writeInt(imageWidth);
+                mOut.writeInt(imageHeight);
+                mOut.writeInt(viewWidth);
+                mOut.writeInt(viewHeight);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * 写入触摸事件的开头，之后依次调用sampleCount次writeSample()
+         *
+         * @param action      MotionEvent.getAction()，包括触摸点的索引
+         * @param pointerIds  每个触摸点的id
+         * @param sampleCount 采样点个数，即历史采样点个数+1
+         */
+        public void beginMotion(long time, int action, int pointerCount, int[] pointerIds, int sampleCount) {
+            if (pointerCount > MAX_POINTERS) {
+                throw new RuntimeException("too many pointers: " + pointerCount);
+            }
+            try {
+                writeHead(MOTION, time);
+                mOut.writeInt(action);
+                mOut.writeByte(pointerCount);
+                for (int i = 0; i < pointerCount; i++) {
+                    mOut.writeByte(pointerIds[i]);
+                }
+                mOut.writeShort(sampleCount);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * 写入一个采样点
+         *
+         * @param coords 每个触摸点依次为x, y, 压力
+         */
+        public void writeSample(long time, float[] coords, int pointerCount) {
+            try {
+                mOut.writeInt((int) (time - mStartTime));
+                for (int i = 0; i < pointerCount * 3; i++) {
+                    mOut.writeFloat(coords[i]);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * 写入带有一个整数参数的记录，没有参数的记录（撤销、重做、清屏）写入0
+         */
+        public void writeInt(int type, long time, int value) {
+            try {
+                writeHead(type, time);
+                mOut.writeInt(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * 写入带有浮点数参数的记录
+         */
+        public void writeFloats(int type, long time, float... values) {
+            try {
+                writeHead(type, time);
+                mOut.writeByte(values.length);
+                for (float value : values) {
+                    mOut.writeFloat(value);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void writeHead(int type, long time) throws IOException {
+            mOut.writeByte(type);
+            mOut.writeInt((int) (time - mStartTime));
+        }
+
+        public void flush() {
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 依次读取记录，每次调用next()后通过getter获取当前记录的内容，getter返回的数组会被复用。不是线程安全的
+     */
+    public static class Reader {
+        private final DataInputStream mIn;
+        private final int mImageWidth, mImageHeight, mViewWidth, mViewHeight;
+
+        private int mType;
+        private int mTime;
+        private int mAction;
+        private int mPointerCount;
+        private final int[] mPointerIds = new int[MAX_POINTERS];
+        private int mSampleCount;
+        private int[] mSampleTimes = new int[16];
+        private float[] mCoords = new float[16 * 3];
+        private int mIntValue;
+        private final float[] mFloatValues = new float[8];
+        private int mFloatCount;
+
+        public Reader(byte[] trace) {
+            this(new ByteArrayInputStream(trace));
+        }
+
+        public Reader(InputStream in) {
+            mIn = new DataInputStream(in);
+            try {
+                if (mIn.readInt() != MAGIC) {
+                    throw new RuntimeException("not a touch trace");
+                }
+                int version = mIn.readInt();
+                if (version != VERSION) {
+                    throw new RuntimeException("unsupported touch trace version: " + version);
+                }
+                mImageWidth = mIn.readInt();
+                mImageHeight = mIn.readInt();
+                mViewWidth = mIn.readInt();
+                mViewHeight = mIn.readInt();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public int getImageWidth() {
+            return mImageWidth;
+        }
+
+        public int getImageHeight() {
+            return mImageHeight;
+        }
+
+        public int getViewWidth() {
+            return mViewWidth;
+        }
+
+        public int getViewHeight() {
+            return mViewHeight;
+        }
+
+        /**
+         * 读取下一条记录
+         *
+         * @return 记录的类型，没有更多记录时返回{@link #END}
+         */
+        public int next() {
+            try {
+                int type;
+                try {
+                    type = mIn.readByte();
+                } catch (EOFException e) {
+                    return mType = END;
+                }
+                mType = type;
+                mTime = mIn.readInt();
+                switch (type) {
+                    case MOTION:
+                        readMotion();
+                        break;
+                    case PAINT_SIZE:
+                    case TRANSFORM:
+                        mFloatCount = mIn.readUnsignedByte();
+                        if (mFloatCount > mFloatValues.length) {
+                            throw new RuntimeException("corrupted touch trace");
+                        }
+                        for (int i = 0; i < mFloatCount; i++) {
+                            mFloatValues[i] = mIn.readFloat();
+                        }
+                        break;
+                    default:
+                        mIntValue = mIn.readInt();
+                        break;
+                }
+                return type;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void readMotion() throws IOException {
+            mAction = mIn.readInt();
+            mPointerCount = mIn.readUnsignedByte();
+            if (mPointerCount > MAX_POINTERS) {
+                throw new RuntimeException("corrupted touch trace");
+            }
+            for (int i = 0; i < mPointerCount; i++) {
+                mPointerIds[i] = mIn.readUnsignedByte();
+            }
+            mSampleCount = mIn.readUnsignedShort();
+            if (mSampleTimes.length < mSampleCount) {
+                mSampleTimes = new int[mSampleCount];
+            }
+            int coordCount = mSampleCount * mPointerCount * 3;
+            if (mCoords.length < coordCount) {
+                mCoords = new float[coordCount];
+            }
+            for (int s = 0, c = 0; s < mSampleCount; s++) {
+                mSampleTimes[s] = mIn.readInt();
+                for (int i = 0; i < mPointerCount * 3; i++) {
+                    mCoords[c++] = mIn.readFloat();
+                }
+            }
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * 当前记录的时间，相对于开始记录的毫秒数
+         */
+        public int getTime() {
+            return mTime;
+        }
+
+        public int getAction() {
+            return mAction;
+        }
+
+        public int getPointerCount() {
+            return mPointerCount;
+        }
+
+        public int[] getPointerIds() {
+            return mPointerIds;
+        }
+
+        /**
+         * 采样点个数，最后一个为触摸事件的当前采样点，之前的为历史采样点
+         */
+        public int getSampleCount() {
+            return mSampleCount;
+        }
+
+        public int getSampleTime(int sample) {
+            return mSampleTimes[sample];
+        }
+
+        /**
+         * 所有采样点的坐标，按采样点、触摸点的顺序，每个触摸点依次为x, y, 压力
+         */
+        public float[] getCoords() {
+            return mCoords;
+        }
+
+        public int getIntValue() {
+            return mIntValue;
+        }
+
+        public float getFloatValue(int i) {
+            return mFloatValues[i];
+        }
+    }
+}
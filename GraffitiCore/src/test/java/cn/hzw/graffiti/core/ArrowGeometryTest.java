@@ -0,0 +1,136 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ArrowGeometryTest {
+
+    private static final float DELTA = 1e-3f;
+
+    /**
+     * 原来DrawUtil.drawArrow()中用rotateVec计算顶点的方法
+     */
+    private static float[] legacyVertices(float sx, float sy, float ex, float ey, float arrowSize) {
+        double H = arrowSize;
+        double L = arrowSize / 2;
+        float[] out = new float[ArrowGeometry.VERTEX_COUNT];
+        double[] v1 = new double[2], v2 = new double[2];
+
+        double awrad = Math.atan(L / 2 / H);
+        double len = Math.sqrt(L / 2 * L / 2 + H * H) - 5;
+        GraffitiMath.rotateVec(ex - sx, ey - sy, awrad, true, len, v1);
+        GraffitiMath.rotateVec(ex - sx, ey - sy, -awrad, true, len, v2);
+        out[0] = (float) (ex - v1[0]);
+        out[1] = (float) (ey - v1[1]);
+        out[2] = (float) (ex - v2[0]);
+        out[3] = (float) (ey - v2[1]);
+
+        awrad = Math.atan(L / H);
+        len = Math.sqrt(L * L + H * H);
+        GraffitiMath.rotateVec(ex - sx, ey - sy, awrad, true, len, v1);
+        GraffitiMath.rotateVec(ex - sx, ey - sy, -awrad, true, len, v2);
+        out[4] = (float) (ex - v1[0]);
+        out[5] = (float) (ey - v1[1]);
+        out[6] = (float) (ex - v2[0]);
+        out[7] = (float) (ey - v2[1]);
+        return out;
+    }
+
+    @Test
+    public void matchesLegacyRotateVec() {
+        ArrowGeometry arrow = new ArrowGeometry();
+        float[] out = new float[ArrowGeometry.VERTEX_COUNT];
+        float[][] cases = {
+                {0, 0, 100, 0, 20},
+                {0, 0, 0, 100, 20},
+                {10, 20, -300, 45, 35},
+                {500, 500, 499, 498, 8},
+                {-50, 80, 120, -260, 60},
+                {0, 0, 100, 0, 20}, // 箭头大小与上一次相同，使用缓存的边长
+        };
+        for (float[] c : cases) {
+            assertEquals(true, arrow.compute(c[0], c[1], c[2], c[3], c[4], out));
+            assertArrayEquals(legacyVertices(c[0], c[1], c[2], c[3], c[4]), out, DELTA);
+        }
+    }
+
+    @Test
+    public void zeroLengthHasNoDirection() {
+        float[] out = new float[ArrowGeometry.VERTEX_COUNT];
+        assertFalse(new ArrowGeometry().compute(5, 5, 5, 5, 20, out));
+    }
+
+    /** 箭头大小：细线、常用线宽和很粗的线 */
+    private static final float[] WIDTHS = {1, 5, 8, 20, 35, 60, 200};
+    /** 方向角，每15度一个，包括水平、垂直和对角线 */
+    private static final int ANGLE_STEP = 15;
+
+    @Test
+    public void computeDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ArrowGeometry arrow = new ArrowGeometry();
+        float[] out = new float[ArrowGeometry.VERTEX_COUNT];
+        float[] ends = sweepEnds();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < 2000; i++) { // 预热，类加载和编译产生的分配不计入
+            sweep(arrow, out, ends);
+        }
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 2000; i++) {
+            sweep(arrow, out, ends);
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        assertEquals("compute() allocated " + allocated + " bytes", 0, allocated);
+    }
+
+    /**
+     * 每个箭头大小和方向各计算一次，再加上起点和终点重合的情况
+     */
+    private static void sweep(ArrowGeometry arrow, float[] out, float[] ends) {
+        for (int w = 0; w < WIDTHS.length; w++) {
+            for (int i = 0; i < ends.length; i += 2) {
+                arrow.compute(10, 20, ends[i], ends[i + 1], WIDTHS[w], out);
+            }
+            arrow.compute(10, 20, 10, 20, WIDTHS[w], out);
+        }
+    }
+
+    /**
+     * 从(10,20)出发、长度为100的每个方向的终点，x和y交替存放
+     */
+    private static float[] sweepEnds() {
+        float[] ends = new float[360 / ANGLE_STEP * 2];
+        for (int deg = 0, i = 0; deg < 360; deg += ANGLE_STEP, i += 2) {
+            double rad = Math.toRadians(deg);
+            ends[i] = 10 + (float) (100 * Math.cos(rad));
+            ends[i + 1] = 20 + (float) (100 * Math.sin(rad));
+        }
+        return ends;
+    }
+
+    @Test
+    public void sweepMatchesLegacyRotateVec() {
+        ArrowGeometry arrow = new ArrowGeometry();
+        float[] out = new float[ArrowGeometry.VERTEX_COUNT];
+        for (int w = 0; w < WIDTHS.length; w++) {
+            for (int deg = 0; deg < 360; deg += ANGLE_STEP) {
+                double rad = Math.toRadians(deg);
+                float ex = 10 + (float) (100 * Math.cos(rad)), ey = 20 + (float) (100 * Math.sin(rad));
+                assertEquals(true, arrow.compute(10, 20, ex, ey, WIDTHS[w], out));
+                assertArrayEquals("width " + WIDTHS[w] + " angle " + deg,
+                        legacyVertices(10, 20, ex, ey, WIDTHS[w]), out, DELTA);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GraffitiMathTest {
+
+    @Test
+    public void imageThatFitsIsNotSampled() {
+        assertEquals(1, GraffitiMath.sampleSizeToFit(100, 100, 4, 100 * 100 * 4));
+    }
+
+    @Test
+    public void sampleSizeIsTheSmallestPowerOfTwoThatFits() {
+        // 4000x3000x10字节 = 120MB
+        assertEquals(2, GraffitiMath.sampleSizeToFit(4000, 3000, 10, 30000000));
+        assertEquals(4, GraffitiMath.sampleSizeToFit(4000, 3000, 10, 29999999));
+        assertEquals(8, GraffitiMath.sampleSizeToFit(4000, 3000, 10, 2000000));
+    }
+
+    @Test
+    public void oddSizesRoundUpLikeTheDecoder() {
+        // 101/2向上取整为51，51x51x1 = 2601 > 2550
+        assertEquals(4, GraffitiMath.sampleSizeToFit(101, 101, 1, 2550));
+        assertEquals(2, GraffitiMath.sampleSizeToFit(101, 101, 1, 2601));
+    }
+
+    @Test
+    public void impossibleBudgetReturnsZero() {
+        assertEquals(0, GraffitiMath.sampleSizeToFit(4000, 3000, 4, 3));
+        assertEquals(1024, GraffitiMath.sampleSizeToFit(1000, 1000, 4, 4));
+    }
+
+    @Test
+    public void fitLongestEdgeKeepsAspectRatio() {
+        // 4000x3000缩小到最长边1024和256，与保存时的预览图、缩略图一致
+        assertEquals(1024, GraffitiMath.fitLongestEdge(4000, 4000, 3000, 1024));
+        assertEquals(768, GraffitiMath.fitLongestEdge(3000, 4000, 3000, 1024));
+        assertEquals(192, GraffitiMath.fitLongestEdge(3000, 3000, 4000, 256));
+        assertEquals(256, GraffitiMath.fitLongestEdge(4000, 3000, 4000, 256));
+    }
+
+    @Test
+    public void fitLongestEdgeNeverUpscales() {
+        assertEquals(800, GraffitiMath.fitLongestEdge(800, 800, 600, 1024));
+        assertEquals(1024, GraffitiMath.fitLongestEdge(1024, 1024, 10, 1024));
+        assertEquals(4000, GraffitiMath.fitLongestEdge(4000, 4000, 3000, 0));
+        assertEquals(4000, GraffitiMath.fitLongestEdge(4000, 4000, 3000, -1));
+    }
+
+    @Test
+    public void fitLongestEdgeKeepsThinImagesVisible() {
+        assertEquals(256, GraffitiMath.fitLongestEdge(10000, 10000, 3, 256));
+        assertEquals(1, GraffitiMath.fitLongestEdge(3, 10000, 3, 256));
+    }
+
+    @Test
+    public void imageCoordinatesRoundTrip() {
+        float scale = 2.5f, centre = 40, trans = -12;
+        float image = GraffitiMath.toImage(300, centre, trans, scale);
+        assertEquals(300, image * scale + centre + trans, 1e-4f);
+        assertEquals(trans, GraffitiMath.toTrans(300, image, centre, scale), 1e-4f);
+    }
+}
@@ -0,0 +1,56 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class PixelHashTest {
+
+    /**
+     * 按字节的FNV-1a 64参考实现
+     */
+    private static long fnv1a(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Test
+    public void referenceMatchesPublishedVector() {
+        assertEquals(0xaf63dc4c8601ec8cL, fnv1a(new byte[]{'a'}));
+        assertEquals(0xcbf29ce484222325L, PixelHash.OFFSET_BASIS);
+    }
+
+    @Test
+    public void pixelsHashAsLittleEndianBytes() {
+        int[] pixels = {0x44332211, 0xff000080, 0};
+        long expected = fnv1a(new byte[]{0x11, 0x22, 0x33, 0x44, (byte) 0x80, 0, 0, (byte) 0xff, 0, 0, 0, 0});
+        assertEquals(expected, PixelHash.update(PixelHash.OFFSET_BASIS, pixels, 0, pixels.length));
+    }
+
+    @Test
+    public void intMatchesSinglePixel() {
+        assertEquals(PixelHash.update(PixelHash.OFFSET_BASIS, new int[]{0x44332211}, 0, 1),
+                PixelHash.update(PixelHash.OFFSET_BASIS, 0x44332211));
+    }
+
+    @Test
+    public void rowsCanBeHashedIncrementally() {
+        int[] pixels = {1, 2, 3, 4, 5, 6};
+        long whole = PixelHash.update(PixelHash.OFFSET_BASIS, pixels, 0, 6);
+        long rows = PixelHash.update(PixelHash.OFFSET_BASIS, pixels, 0, 3);
+        rows = PixelHash.update(rows, pixels, 3, 3);
+        assertEquals(whole, rows);
+    }
+
+    @Test
+    public void singlePixelChangeChangesHash() {
+        int[] a = {0xff000000, 0xff000000, 0xff000000};
+        int[] b = {0xff000000, 0xff000001, 0xff000000};
+        assertNotEquals(PixelHash.update(PixelHash.OFFSET_BASIS, a, 0, 3),
+                PixelHash.update(PixelHash.OFFSET_BASIS, b, 0, 3));
+    }
+}
@@ -0,0 +1,100 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RingHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        RingHistogram histogram = new RingHistogram(4);
+        assertEquals(0, histogram.getSize());
+        assertEquals(0, histogram.getLast());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void singleSampleIsEveryPercentile() {
+        RingHistogram histogram = new RingHistogram(4);
+        histogram.record(7);
+        assertEquals(7, histogram.getPercentile(0));
+        assertEquals(7, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        RingHistogram histogram = new RingHistogram(100);
+        for (int i = 100; i >= 1; i--) { // 逆序记录，统计时排序
+            histogram.record(i);
+        }
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(1, histogram.getPercentile(1));
+        assertEquals(50, histogram.getPercentile(50));
+        assertEquals(51, histogram.getPercentile(50.5f));
+        assertEquals(99, histogram.getPercentile(99));
+        assertEquals(100, histogram.getPercentile(100));
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getMean());
+    }
+
+    @Test
+    public void outOfRangePercentilesAreClamped() {
+        RingHistogram histogram = new RingHistogram(3);
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(30);
+        assertEquals(10, histogram.getPercentile(-5));
+        assertEquals(30, histogram.getPercentile(150));
+    }
+
+    @Test
+    public void onlyTheLastCapacitySamplesAreKept() {
+        RingHistogram histogram = new RingHistogram(3);
+        for (int i = 1; i <= 5; i++) {
+            histogram.record(i * 10);
+        }
+        assertEquals(3, histogram.getSize());
+        assertEquals(5, histogram.getTotalCount());
+        assertEquals(50, histogram.getLast());
+        assertEquals(30, histogram.getMin());
+        assertEquals(50, histogram.getMax());
+        assertEquals(40, histogram.getMean());
+    }
+
+    @Test
+    public void statisticsDoNotReorderTheRing() {
+        RingHistogram histogram = new RingHistogram(3);
+        histogram.record(30);
+        histogram.record(10);
+        histogram.getPercentile(50);
+        histogram.record(20);
+        assertEquals(20, histogram.getLast());
+        histogram.record(40); // 覆盖最早的30
+        assertEquals(10, histogram.getMin());
+        assertEquals(40, histogram.getMax());
+    }
+
+    @Test
+    public void resetClearsTheWindow() {
+        RingHistogram histogram = new RingHistogram(3);
+        histogram.record(5);
+        histogram.record(6);
+        histogram.reset();
+        assertEquals(0, histogram.getSize());
+        assertEquals(0, histogram.getTotalCount());
+        histogram.record(9);
+        assertEquals(9, histogram.getLast());
+        assertEquals(9, histogram.getMean());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void capacityMustBePositive() {
+        new RingHistogram(0);
+    }
+}
@@ -0,0 +1,54 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SaveFormatTest {
+
+    @Test
+    public void jpegAndPngAreTheSameEverywhere() {
+        for (int sdk : new int[]{9, 14, 29, 30, 34}) {
+            assertEquals("JPEG", SaveFormat.JPEG.getEncoderName(sdk));
+            assertEquals("jpg", SaveFormat.JPEG.getExtension(sdk));
+            assertEquals(95, SaveFormat.JPEG.getQuality(95, true, sdk));
+            assertEquals("PNG", SaveFormat.PNG.getEncoderName(sdk));
+            assertEquals("png", SaveFormat.PNG.getExtension(sdk));
+        }
+    }
+
+    @Test
+    public void lossyWebpFallsBackToJpegBeforeIceCreamSandwich() {
+        assertEquals("JPEG", SaveFormat.WEBP.getEncoderName(13));
+        assertEquals("jpg", SaveFormat.WEBP.getExtension(13));
+        assertEquals("WEBP", SaveFormat.WEBP.getEncoderName(14));
+        assertEquals("webp", SaveFormat.WEBP.getExtension(14));
+        assertEquals("WEBP_LOSSY", SaveFormat.WEBP.getEncoderName(30));
+    }
+
+    @Test
+    public void lossyWebpNeverTurnsLosslessOnQ() {
+        assertEquals(99, SaveFormat.WEBP.getQuality(100, false, 29));
+        assertEquals(80, SaveFormat.WEBP.getQuality(80, false, 29));
+        assertEquals(100, SaveFormat.WEBP.getQuality(100, false, 30)); // WEBP_LOSSY明确为有损
+        assertEquals(100, SaveFormat.WEBP.getQuality(100, false, 28));
+    }
+
+    @Test
+    public void losslessWebpFallsBackToPng() {
+        assertEquals("PNG", SaveFormat.WEBP_LOSSLESS.getEncoderName(28));
+        assertEquals("png", SaveFormat.WEBP_LOSSLESS.getExtension(28));
+        assertEquals("WEBP", SaveFormat.WEBP_LOSSLESS.getEncoderName(29));
+        assertEquals(100, SaveFormat.WEBP_LOSSLESS.getQuality(50, true, 29)); // Android 10上WEBP只有质量100是无损的
+        assertEquals("WEBP_LOSSLESS", SaveFormat.WEBP_LOSSLESS.getEncoderName(30));
+        assertEquals("webp", SaveFormat.WEBP_LOSSLESS.getExtension(30));
+    }
+
+    @Test
+    public void fastEncodeLowersLosslessEffortOnly() {
+        assertEquals(75, SaveFormat.WEBP_LOSSLESS.getQuality(75, false, 30));
+        assertEquals(SaveFormat.FAST_EFFORT, SaveFormat.WEBP_LOSSLESS.getQuality(75, true, 30));
+        assertEquals(75, SaveFormat.WEBP.getQuality(75, true, 30));
+        assertEquals(75, SaveFormat.JPEG.getQuality(75, true, 30));
+    }
+}
@@ -0,0 +1,59 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TileGridTest {
+
+    @Test
+    public void exactMultipleHasFullTiles() {
+        TileGrid grid = new TileGrid(1024, 512, 512);
+        assertEquals(2, grid.getColumns());
+        assertEquals(1, grid.getRows());
+        assertEquals(2, grid.getCount());
+        assertEquals(512, grid.getLeft(1));
+        assertEquals(1024, grid.getRight(1));
+        assertEquals(512, grid.getBottom(1));
+    }
+
+    @Test
+    public void lastRowAndColumnAreClipped() {
+        TileGrid grid = new TileGrid(1000, 700, 512);
+        assertEquals(2, grid.getColumns());
+        assertEquals(2, grid.getRows());
+        int last = grid.getCount() - 1;
+        assertEquals(512, grid.getLeft(last));
+        assertEquals(512, grid.getTop(last));
+        assertEquals(1000, grid.getRight(last));
+        assertEquals(700, grid.getBottom(last));
+    }
+
+    @Test
+    public void tilesCoverTheImageWithoutOverlap() {
+        int width = 4032, height = 3024;
+        TileGrid grid = new TileGrid(width, height, 500);
+        long area = 0;
+        for (int i = 0; i < grid.getCount(); i++) {
+            int w = grid.getRight(i) - grid.getLeft(i), h = grid.getBottom(i) - grid.getTop(i);
+            assertTrue("tile " + i + " width " + w, w > 0 && w <= 500);
+            assertTrue("tile " + i + " height " + h, h > 0 && h <= 500);
+            area += (long) w * h;
+        }
+        assertEquals((long) width * height, area);
+    }
+
+    @Test
+    public void imageSmallerThanOneTile() {
+        TileGrid grid = new TileGrid(10, 20, 512);
+        assertEquals(1, grid.getCount());
+        assertEquals(10, grid.getRight(0));
+        assertEquals(20, grid.getBottom(0));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsEmptyImage() {
+        new TileGrid(0, 10, 512);
+    }
+}
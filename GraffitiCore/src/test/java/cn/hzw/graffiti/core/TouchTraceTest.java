@@ -0,0 +1,110 @@
+package cn.hzw.graffiti.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TouchTraceTest {
+
+    private static final float DELTA = 0;
+
+    @Test
+    public void roundTrip() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TouchTrace.Writer writer = new TouchTrace.Writer(out, 1080, 720, 1920, 1200, 1000);
+        writer.writeInt(TouchTrace.PEN, 1005, 2);
+        writer.writeFloats(TouchTrace.PAINT_SIZE, 1010, 12.5f);
+        // 两个触摸点、三个采样点的移动事件
+        writer.beginMotion(1020, 2, 2, new int[]{0, 3}, 3);
+        writer.writeSample(1012, new float[]{1, 2, 0.5f, 3, 4, 0.6f}, 2);
+        writer.writeSample(1016, new float[]{5, 6, 0.7f, 7, 8, 0.8f}, 2);
+        writer.writeSample(1020, new float[]{9, 10, 0.9f, 11, 12, 1}, 2);
+        writer.writeFloats(TouchTrace.TRANSFORM, 1030, 2, -10, 20);
+        writer.writeInt(TouchTrace.UNDO, 1040, 0);
+        writer.flush();
+
+        TouchTrace.Reader reader = new TouchTrace.Reader(out.toByteArray());
+        assertEquals(1080, reader.getImageWidth());
+        assertEquals(720, reader.getImageHeight());
+        assertEquals(1920, reader.getViewWidth());
+        assertEquals(1200, reader.getViewHeight());
+
+        assertEquals(TouchTrace.PEN, reader.next());
+        assertEquals(5, reader.getTime());
+        assertEquals(2, reader.getIntValue());
+
+        assertEquals(TouchTrace.PAINT_SIZE, reader.next());
+        assertEquals(10, reader.getTime());
+        assertEquals(12.5f, reader.getFloatValue(0), DELTA);
+
+        assertEquals(TouchTrace.MOTION, reader.next());
+        assertEquals(20, reader.getTime());
+        assertEquals(2, reader.getAction());
+        assertEquals(2, reader.getPointerCount());
+        assertEquals(0, reader.getPointerIds()[0]);
+        assertEquals(3, reader.getPointerIds()[1]);
+        assertEquals(3, reader.getSampleCount());
+        assertEquals(12, reader.getSampleTime(0));
+        assertEquals(16, reader.getSampleTime(1));
+        assertEquals(20, reader.getSampleTime(2));
+        float[] coords = new float[18];
+        System.arraycopy(reader.getCoords(), 0, coords, 0, coords.length);
+        assertArrayEquals(new float[]{1, 2, 0.5f, 3, 4, 0.6f, 5, 6, 0.7f, 7, 8, 0.8f, 9, 10, 0.9f, 11, 12, 1},
+                coords, DELTA);
+
+        assertEquals(TouchTrace.TRANSFORM, reader.next());
+        assertEquals(2, reader.getFloatValue(0), DELTA);
+        assertEquals(-10, reader.getFloatValue(1), DELTA);
+        assertEquals(20, reader.getFloatValue(2), DELTA);
+
+        assertEquals(TouchTrace.UNDO, reader.next());
+        assertEquals(40, reader.getTime());
+        assertEquals(TouchTrace.END, reader.next());
+        assertEquals(TouchTrace.END, reader.next());
+    }
+
+    @Test
+    public void growsBuffersForLongMotions() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TouchTrace.Writer writer = new TouchTrace.Writer(out, 1, 1, 1, 1, 0);
+        int samples = 100;
+        writer.beginMotion(0, 2, 1, new int[]{0}, samples);
+        for (int i = 0; i < samples; i++) {
+            writer.writeSample(i, new float[]{i, -i, 1}, 1);
+        }
+        writer.flush();
+
+        TouchTrace.Reader reader = new TouchTrace.Reader(out.toByteArray());
+        assertEquals(TouchTrace.MOTION, reader.next());
+        assertEquals(samples, reader.getSampleCount());
+        assertEquals(samples - 1, reader.getSampleTime(samples - 1));
+        assertEquals(samples - 1, reader.getCoords()[(samples - 1) * 3], DELTA);
+        assertEquals(-(samples - 1), reader.getCoords()[(samples - 1) * 3 + 1], DELTA);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsForeignData() {
+        new TouchTrace.Reader(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsTooManyPointers() {
+        TouchTrace.Writer writer = new TouchTrace.Writer(new ByteArrayOutputStream(), 1, 1, 1, 1, 0);
+        writer.beginMotion(0, 2, TouchTrace.MAX_POINTERS + 1, new int[TouchTrace.MAX_POINTERS + 1], 1);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void truncatedRecordFails() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TouchTrace.Writer writer = new TouchTrace.Writer(out, 1, 1, 1, 1, 0);
+        writer.writeInt(TouchTrace.COLOR, 0, 0xff00ff00);
+        writer.flush();
+        byte[] data = out.toByteArray();
+        byte[] truncated = new byte[data.length - 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        new TouchTrace.Reader(truncated).next();
+    }
+}
@@ -2,11 +2,14 @@ package cn.hzw.graffiti;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.PersistableBundle;
@@ -19,15 +22,17 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.Collections;
 
 import cn.forward.androids.utils.ImageUtils;
 import cn.forward.androids.utils.LogUtil;
 import cn.forward.androids.utils.ThreadUtil;
 import cn.hzw.graffiti.info.GraffitiParams;
+import cn.hzw.graffiti.util.BitmapDecodeUtil;
+import cn.hzw.graffiti.util.BitmapPool;
 import cn.hzw.graffiti.widget.ColorPickerDialog;
 import cn.hzw.graffiti.widget.graffiti.GraffitiView;
+import cn.hzw.graffiti.widget.graffiti.SaveSpec;
 import cn.hzw.graffiti.widget.graffiti.info.GraffitiColor;
 import cn.hzw.graffiti.widget.graffiti.info.Pen;
 import cn.hzw.graffiti.widget.graffiti.info.Shape;
@@ -126,6 +131,8 @@ public class GraffitiActivity extends Activity {
 
     /** 涂鸦参数 */
     private GraffitiParams mGraffitiParams;
+    /** 保存图片的进度框，取消时停止保存 */
+    private ProgressDialog mSaveDialog;
 
     /** 触摸屏幕超过一定时间才判断为需要隐藏设置面板 */
     private Runnable mHideDelayRunnable;
@@ -169,63 +176,49 @@ public class GraffitiActivity extends Activity {
             getWindow().clearFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
         }*/
         requestWindowFeature(Window.FEATURE_NO_TITLE);
-        mBitmap = ImageUtils.createBitmapFromPath(mImagePath, this);
-        if (mBitmap == null) {
-            this.finish();
-            return;
-        }
-
         setContentView(R.layout.layout_graffiti);
         mFrameLayout = (FrameLayout) findViewById(R.id.graffiti_container);
 
-        mGraffitiView = new GraffitiView(this, mBitmap, mGraffitiParams.mEraserPath, mGraffitiParams.mEraserImageIsResizeable,
-                new GraffitiView.GraffitiListener() {
+        // 在子线程中按屏幕大小解码图片，避免阻塞主线程以及大图内存溢出
+        final int viewWidth = getResources().getDisplayMetrics().widthPixels;
+        final int viewHeight = getResources().getDisplayMetrics().heightPixels;
+        ThreadUtil.getInstance().runOnAsyncThread(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = BitmapDecodeUtil.decodeSampled(mImagePath, viewWidth, viewHeight, mMaxScale);
+                final BitmapRegionDecoder decoder = bitmap == null ? null : BitmapDecodeUtil.newRegionDecoder(mImagePath);
+                ThreadUtil.getInstance().runOnMainThread(new Runnable() {
                     @Override
-                    public void onSaved(Bitmap bitmap, Bitmap bitmapEraser) { // 保存图片
-                        if (bitmapEraser != null) {
-                            bitmapEraser.recycle(); // 回收图片，不再涂鸦，避免内存溢出
-                        }
-                        File graffitiFile = null;
-                        File file = null;
-                        String savePath = mGraffitiParams.mSavePath;
-                        boolean isDir = mGraffitiParams.mSavePathIsDir;
-                        if (TextUtils.isEmpty(savePath)) {
-                            File dcimFile = new File(Environment.getExternalStorageDirectory(), "DCIM");
-                            graffitiFile = new File(dcimFile, "Graffiti");
-                            //　保存的路径
-                            file = new File(graffitiFile, System.currentTimeMillis() + ".jpg");
-                        } else {
-                            if (isDir) {
-                                graffitiFile = new File(savePath);
-                                //　保存的路径
-                                file = new File(graffitiFile, System.currentTimeMillis() + ".jpg");
-                            } else {
-                                file = new File(savePath);
-                                graffitiFile = file.getParentFile();
+                    public void run() {
+                        if (bitmap == null || isFinishing()) {
+                            if (bitmap != null) {
+                                BitmapPool.getInstance().put(bitmap);
                             }
-                        }
-                        graffitiFile.mkdirs();
-
-                        FileOutputStream outputStream = null;
-                        try {
-                            outputStream = new FileOutputStream(file);
-                            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, outputStream);
-                            ImageUtils.addImage(getContentResolver(), file.getAbsolutePath());
-                            Intent intent = new Intent();
-                            intent.putExtra(KEY_IMAGE_PATH, file.getAbsolutePath());
-                            setResult(Activity.RESULT_OK, intent);
-                            finish();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            onError(GraffitiView.ERROR_SAVE, e.getMessage());
-                        } finally {
-                            if (outputStream != null) {
-                                try {
-                                    outputStream.close();
-                                } catch (IOException e) {
-                                }
+                            if (decoder != null) {
+                                decoder.recycle();
                             }
+                            finish();
+                            return;
                         }
+                        mBitmap = bitmap;
+                        initGraffitiView(decoder);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 图片解码完成后创建涂鸦view
+     *
+     * @param decoder 原图的区域解码器，可以为null
+     */
+    private void initGraffitiView(BitmapRegionDecoder decoder) {
+        mGraffitiView = new GraffitiView(this, mBitmap, mGraffitiParams.mEraserPath, mGraffitiParams.mEraserImageIsResizeable,
+                new GraffitiView.GraffitiListener() {
+                    @Override
+                    public void onSaved(Bitmap bitmap, Bitmap bitmapEraser) {
+                        // 通过GraffitiView.save(File, SaveListener)在子线程中保存，不会回调
                     }
 
                     @Override
@@ -241,6 +234,13 @@ public class GraffitiActivity extends Activity {
                     }
                 });
         mGraffitiView.setIsDrawableOutside(mGraffitiParams.mIsDrawableOutside);
+        if (mGraffitiParams.mHardwareRendering) {
+            mGraffitiView.setHardwareRendering(true);
+        }
+        if (decoder != null) {
+            mGraffitiView.setRegionDecoder(decoder);
+        }
+        mGraffitiView.setSimplifyTolerance(mGraffitiParams.mSimplifyTolerance);
         mFrameLayout.addView(mGraffitiView, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
         mOnClickListener = new GraffitiOnClickListener();
         initView();
@@ -259,6 +259,7 @@ public class GraffitiActivity extends Activity {
         findViewById(R.id.btn_fill_rect).setOnClickListener(mOnClickListener);
         findViewById(R.id.btn_clear).setOnClickListener(mOnClickListener);
         findViewById(R.id.btn_undo).setOnClickListener(mOnClickListener);
+        findViewById(R.id.btn_redo).setOnClickListener(mOnClickListener);
         mBtnHidePanel = findViewById(R.id.graffiti_btn_hide_panel);
         mBtnHidePanel.setOnClickListener(mOnClickListener);
         findViewById(R.id.graffiti_btn_finish).setOnClickListener(mOnClickListener);
@@ -397,6 +398,9 @@ public class GraffitiActivity extends Activity {
             } else if (v.getId() == R.id.btn_undo) {
                 mGraffitiView.undo();
                 mDone = true;
+            } else if (v.getId() == R.id.btn_redo) {
+                mGraffitiView.redo();
+                mDone = true;
             } else if (v.getId() == R.id.btn_set_color) {
                 new ColorPickerDialog(GraffitiActivity.this, mGraffitiView.getGraffitiColor().getColor(), "画笔颜色",
                         new ColorPickerDialog.OnColorChangedListener() {
@@ -428,7 +432,7 @@ public class GraffitiActivity extends Activity {
                 }
                 mDone = true;
             } else if (v.getId() == R.id.graffiti_btn_finish) {
-                mGraffitiView.save();
+                saveGraffiti();
                 mDone = true;
             } else if (v.getId() == R.id.graffiti_btn_back) {
                 if (!mGraffitiView.isModified()) {
@@ -440,7 +444,7 @@ public class GraffitiActivity extends Activity {
                         .setPositiveButton(R.string.graffiti_enter, new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface arg0, int arg1) {
-                                mGraffitiView.save();
+                                saveGraffiti();
                             }
                         })
                         .setNegativeButton(R.string.graffiti_cancel, new DialogInterface.OnClickListener() {
@@ -490,8 +494,86 @@ public class GraffitiActivity extends Activity {
         }
     }
 
+    /**
+     * 保存的路径
+     */
+    private File getSaveFile() {
+        File graffitiFile = null;
+        File file = null;
+        String name = System.currentTimeMillis() + "." + mGraffitiParams.mSaveFormat.getExtension(Build.VERSION.SDK_INT);
+        String savePath = mGraffitiParams.mSavePath;
+        boolean isDir = mGraffitiParams.mSavePathIsDir;
+        if (TextUtils.isEmpty(savePath)) {
+            File dcimFile = new File(Environment.getExternalStorageDirectory(), "DCIM");
+            graffitiFile = new File(dcimFile, "Graffiti");
+            //　保存的路径
+            file = new File(graffitiFile, name);
+        } else {
+            if (isDir) {
+                graffitiFile = new File(savePath);
+                //　保存的路径
+                file = new File(graffitiFile, name);
+            } else {
+                file = new File(savePath);
+                graffitiFile = file.getParentFile();
+            }
+        }
+        graffitiFile.mkdirs();
+        return file;
+    }
+
+    /**
+     * 在子线程中保存图片，显示可以取消的进度框
+     */
+    private void saveGraffiti() {
+        if (mSaveDialog != null && mSaveDialog.isShowing()) {
+            return;
+        }
+        mSaveDialog = new ProgressDialog(this);
+        mSaveDialog.setMessage(getString(R.string.graffiti_saving));
+        mSaveDialog.setIndeterminate(true);
+        mSaveDialog.setCancelable(true);
+        mSaveDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                mGraffitiView.cancelSave();
+            }
+        });
+        mSaveDialog.show();
+
+        SaveSpec spec = new SaveSpec(getSaveFile(), 0, mGraffitiParams.mSaveFormat,
+                mGraffitiParams.mSaveQuality, mGraffitiParams.mSaveFastEncode);
+        mGraffitiView.save(Collections.singletonList(spec), new GraffitiView.SaveListener() {
+            @Override
+            public void onSaveProgress(long bytes) {
+                mSaveDialog.setMessage(getString(R.string.graffiti_saving) + " " + bytes / 1024 + "KB");
+            }
+
+            @Override
+            public void onSaveCompleted(File file) {
+                mSaveDialog.dismiss();
+                ImageUtils.addImage(getContentResolver(), file.getAbsolutePath());
+                Intent intent = new Intent();
+                intent.putExtra(KEY_IMAGE_PATH, file.getAbsolutePath());
+                setResult(Activity.RESULT_OK, intent);
+                finish();
+            }
+
+            @Override
+            public void onSaveFailed(File file, String msg) {
+                mSaveDialog.dismiss();
+                setResult(RESULT_ERROR);
+                finish();
+            }
+        });
+    }
+
     @Override
     public void onBackPressed() {
+        if (mGraffitiView == null) { // 图片还在解码
+            super.onBackPressed();
+            return;
+        }
 
         if (mBtnMovePic.isSelected()) {
             mBtnMovePic.setSelected(false);
@@ -502,6 +584,25 @@ public class GraffitiActivity extends Activity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // 图片放回图片池，连续涂鸦多张图片时复用内存
+        final Bitmap bitmap = mBitmap;
+        mBitmap = null;
+        Runnable putBitmap = new Runnable() {
+            @Override
+            public void run() {
+                BitmapPool.getInstance().put(bitmap);
+            }
+        };
+        if (mGraffitiView != null) { // 取消的按原图分辨率导出结束后才放回
+            mGraffitiView.release(putBitmap);
+        } else {
+            putBitmap.run();
+        }
+    }
+
     /**
      * 放大缩小
      */
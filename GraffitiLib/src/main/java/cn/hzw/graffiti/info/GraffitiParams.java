@@ -6,6 +6,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import cn.hzw.graffiti.widget.graffiti.GraffitiView;
+import cn.hzw.graffiti.core.SaveFormat;
 
 /**
  * @author hzzhengrui
@@ -63,6 +64,39 @@ public class GraffitiParams implements Parcelable {
      */
     public boolean mIsFullScreen = false;
 
+    /**
+     * 是否使用硬件加速绘制，缩放、移动大图时更流畅
+     * 默认为false
+     * {@link GraffitiView#setHardwareRendering(boolean)}
+     */
+    public boolean mHardwareRendering = false;
+
+    /**
+     * 手指抬起时简化手写笔画允许的误差（图片像素），小于等于0时不简化
+     * 默认为0.5，原图大小下看不出变化
+     * {@link GraffitiView#setSimplifyTolerance(float)}
+     */
+    public float mSimplifyTolerance = 0.5f;
+
+    /**
+     * 保存的图片格式，文件的扩展名随之改变；系统不支持时退回到效果最接近的格式，见{@link SaveFormat}
+     * 大片纯色的截图用WEBP_LOSSLESS或PNG比JPEG小且没有噪点
+     * 默认为JPEG
+     */
+    public SaveFormat mSaveFormat = SaveFormat.JPEG;
+
+    /**
+     * 保存的质量0~100，PNG忽略，无损WEBP表示压缩的力度（越大文件越小、编码越慢）
+     * 默认为95
+     */
+    public int mSaveQuality = 95;
+
+    /**
+     * 是否快速编码，编码器支持时降低压缩力度，文件变大但编码更快
+     * 默认为false
+     */
+    public boolean mSaveFastEncode = false;
+
     public static final Creator<GraffitiParams> CREATOR = new Creator<GraffitiParams>() {
         @Override
         public GraffitiParams createFromParcel(Parcel in) {
@@ -73,6 +107,11 @@ public class GraffitiParams implements Parcelable {
             params.mEraserPath = in.readString();
             params.mEraserImageIsResizeable = in.readInt() == 1;
             params.mIsDrawableOutside = in.readInt() == 1;
+            params.mHardwareRendering = in.readInt() == 1;
+            params.mSimplifyTolerance = in.readFloat();
+            params.mSaveFormat = SaveFormat.valueOf(in.readString());
+            params.mSaveQuality = in.readInt();
+            params.mSaveFastEncode = in.readInt() == 1;
 
             return params;
         }
@@ -91,6 +130,11 @@ public class GraffitiParams implements Parcelable {
         dest.writeString(mEraserPath);
         dest.writeInt(mEraserImageIsResizeable ? 1 : 0);
         dest.writeInt(mIsDrawableOutside ? 1 : 0);
+        dest.writeInt(mHardwareRendering ? 1 : 0);
+        dest.writeFloat(mSimplifyTolerance);
+        dest.writeString(mSaveFormat.name());
+        dest.writeInt(mSaveQuality);
+        dest.writeInt(mSaveFastEncode ? 1 : 0);
     }
 
     @Override
@@ -0,0 +1,212 @@
+package cn.hzw.graffiti.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Build;
+
+import cn.forward.androids.utils.ImageUtils;
+
+/**
+ * 按显示需要的分辨率解码图片，耗时操作，需要在子线程中调用
+ */
+public class BitmapDecodeUtil {
+
+    /**
+     * 计算采样率，取解码后仍能覆盖 view大小×最大缩放倍数 的最大的2的幂
+     *
+     * @param imageWidth  原图宽度
+     * @param imageHeight 原图高度
+     * @param viewWidth   显示图片的view宽度
+     * @param viewHeight  显示图片的view高度
+     * @param maxScale    最大缩放倍数
+     */
+    public static int computeSampleSize(int imageWidth, int imageHeight, int viewWidth, int viewHeight, float maxScale) {
+        if (imageWidth <= 0 || imageHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+            return 1;
+        }
+        // 图片居中适应view时的缩放比例
+        float fit = Math.min(viewWidth * 1f / imageWidth, viewHeight * 1f / imageHeight);
+        float reqWidth = imageWidth * fit * maxScale;
+        float reqHeight = imageHeight * fit * maxScale;
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= reqWidth && imageHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 按采样率解码图片，并根据exif信息旋转
+     *
+     * @return 解码失败时返回null
+     */
+    public static Bitmap decodeSampled(String path, int viewWidth, int viewHeight, float maxScale) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        int degree = readBounds(path, options);
+        if (degree < 0) {
+            return null;
+        }
+        int width = options.outWidth, height = options.outHeight;
+        if (degree == 90 || degree == 270) { // 旋转后宽高互换
+            width = options.outHeight;
+            height = options.outWidth;
+        }
+        options.inSampleSize = computeSampleSize(width, height, viewWidth, viewHeight, maxScale);
+        return decode(path, options, degree);
+    }
+
+    /**
+     * 读取图片按exif信息旋转后的大小
+     *
+     * @param size 依次写入宽和高
+     * @return 不能解码时返回false
+     */
+    public static boolean readImageSize(String path, int[] size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        int degree = readBounds(path, options);
+        if (degree < 0) {
+            return false;
+        }
+        boolean swap = degree == 90 || degree == 270;
+        size[0] = swap ? options.outHeight : options.outWidth;
+        size[1] = swap ? options.outWidth : options.outHeight;
+        return true;
+    }
+
+    /**
+     * 按指定的采样率解码图片，并根据exif信息旋转
+     *
+     * @return 解码失败时返回null
+     */
+    public static Bitmap decodeWithSampleSize(String path, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        int degree = readBounds(path, options);
+        if (degree < 0) {
+            return null;
+        }
+        options.inSampleSize = sampleSize;
+        return decode(path, options, degree);
+    }
+
+    /**
+     * 解码橡皮擦底图，可以调整大小时重新采样成涂鸦图片的大小
+     *
+     * @param width  涂鸦图片的宽度
+     * @param height 涂鸦图片的高度
+     * @return 解码失败时返回null
+     */
+    public static Bitmap decodeEraser(String path, int width, int height, boolean resizeable) {
+        Bitmap bitmap = decodeSampled(path, width, height, 1);
+        if (bitmap != null && resizeable) {
+            bitmap = resample(bitmap, width, height);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 只解码图片的大小
+     *
+     * @return exif中的旋转角度，不能解码时返回-1
+     */
+    private static int readBounds(String path, BitmapFactory.Options options) {
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return -1;
+        }
+        return ImageUtils.getBitmapExifRotate(path);
+    }
+
+    private static Bitmap decode(String path, BitmapFactory.Options options, int degree) {
+        Bitmap bitmap;
+        try {
+            bitmap = decodeWithPool(path, options);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (bitmap == null || degree == 0) {
+            return bitmap;
+        }
+        Bitmap rotated = ImageUtils.rotateBitmapByExif(bitmap, path, false);
+        if (rotated != bitmap) { // 旋转前的图片放回图片池
+            BitmapPool.getInstance().put(bitmap);
+        }
+        return rotated;
+    }
+
+    /**
+     * 从图片池中取出可以复用的图片作为inBitmap解码，不能复用时正常解码
+     * options中需要已经有outWidth、outHeight和inSampleSize
+     */
+    private static Bitmap decodeWithPool(String path, BitmapFactory.Options options) {
+        Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+        int sample = Math.max(1, options.inSampleSize);
+        if (Build.VERSION.SDK_INT >= 11) { // 可修改的图片用完后才能放回图片池
+            options.inMutable = true;
+        }
+        if (Build.VERSION.SDK_INT >= 19 || (Build.VERSION.SDK_INT >= 11 && sample == 1)) { // 4.4以下只能复用同样大小且不缩放的解码
+            // 解码后的大小可能向上取整，按向上取整的大小取图片，4.4以上占用的内存足够即可
+            int width = (options.outWidth + sample - 1) / sample;
+            int height = (options.outHeight + sample - 1) / sample;
+            Bitmap reuse = BitmapPool.getInstance().get(width, height, config);
+            if (reuse != null) {
+                options.inBitmap = reuse;
+                try {
+                    Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+                    if (bitmap != null) {
+                        return bitmap;
+                    }
+                } catch (IllegalArgumentException e) { // 图片格式或大小不能复用
+                    e.printStackTrace();
+                }
+                options.inBitmap = null;
+                BitmapPool.getInstance().put(reuse);
+            }
+        }
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * 把图片重新采样成指定的大小，大小已经一致时直接返回原图片，否则原图片放回图片池
+     */
+    public static Bitmap resample(Bitmap bitmap, int width, int height) {
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+            return bitmap;
+        }
+        Bitmap.Config config = bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig();
+        Bitmap result = BitmapPool.getInstance().obtain(width, height, config);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        new Canvas(result).drawBitmap(bitmap, null, new Rect(0, 0, width, height), paint);
+        BitmapPool.getInstance().put(bitmap);
+        return result;
+    }
+
+    /**
+     * 创建原图的区域解码器，用于放大超过采样图的分辨率时解码局部细节
+     *
+     * @return 系统版本低于2.3.3、图片需要按exif旋转或者不支持区域解码时返回null
+     */
+    public static BitmapRegionDecoder newRegionDecoder(String path) {
+        if (Build.VERSION.SDK_INT < 10) {
+            return null;
+        }
+        if (ImageUtils.getBitmapExifRotate(path) != 0) { // 区域解码器的坐标是未旋转的原图坐标
+            return null;
+        }
+        try {
+            return BitmapRegionDecoder.newInstance(path, false);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package cn.hzw.graffiti.util;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * 进程内共享的图片池，连续打开多张图片涂鸦时复用图片的内存，减少大对象的分配和GC
+ * 图片按占用的字节数分桶（向上取2的幂），总大小超过上限时回收最久未使用的图片。
+ * 系统版本不低于4.4时，只要占用的内存足够就可以通过reconfigure()复用；3.0~4.3只能复用宽高和格式都相同的图片。
+ * 所有方法都是线程安全的
+ */
+public class BitmapPool {
+
+    private static BitmapPool sInstance;
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return sInstance;
+    }
+
+    /** 按字节数分桶的图片，键为向上取整的2的幂 */
+    private final HashMap<Integer, ArrayList<Bitmap>> mBuckets = new HashMap<Integer, ArrayList<Bitmap>>();
+    /** 池中所有的图片，按放入的先后排序，用于回收最久未使用的图片 */
+    private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+    private long mMaxSize;
+    private long mSize;
+
+    private int mHitCount, mMissCount, mPutCount, mEvictionCount;
+
+    private BitmapPool(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 获取可以复用的图片，图片的内容是未定义的，需要调用者覆盖
+     *
+     * @return 没有合适的图片时返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        if (Build.VERSION.SDK_INT >= 11) {
+            long bytes = (long) width * height * getBytesPerPixel(config);
+            if (bytes <= Integer.MAX_VALUE) {
+                int key = bucketOf((int) bytes);
+                bitmap = take(key, width, height, config, (int) bytes);
+                if (bitmap == null && Build.VERSION.SDK_INT >= 19 && key < (1 << 30)) { // 稍大一些的图片也可以复用
+                    bitmap = take(key << 1, width, height, config, (int) bytes);
+                }
+            }
+        }
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        if (Build.VERSION.SDK_INT >= 19 && (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config)) {
+            bitmap.reconfigure(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 获取可以复用的图片，池中没有时创建新的图片，图片的内容是未定义的，需要调用者覆盖
+     */
+    public Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    private Bitmap take(int key, int width, int height, Bitmap.Config config, int bytes) {
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Bitmap bitmap = bucket.get(i);
+            boolean fit;
+            if (Build.VERSION.SDK_INT >= 19) {
+                fit = bitmap.getAllocationByteCount() >= bytes;
+            } else {
+                fit = bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+            }
+            if (fit) {
+                bucket.remove(i);
+                mLru.remove(bitmap);
+                mSize -= getSize(bitmap);
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把不再使用的图片放回池中，放回后调用者不能再使用该图片
+     * 不能复用的图片（不可修改或系统版本低于3.0）以及超过上限的图片直接回收
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = getSize(bitmap);
+        if (Build.VERSION.SDK_INT < 11 || !bitmap.isMutable() || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+        int key = bucketOf(size);
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mLru.addLast(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    private void trimToSize(long maxSize) {
+        while (mSize > maxSize && !mLru.isEmpty()) {
+            Bitmap eldest = mLru.removeFirst();
+            int size = getSize(eldest);
+            mBuckets.get(bucketOf(size)).remove(eldest);
+            mSize -= size;
+            mEvictionCount++;
+            eldest.recycle();
+        }
+    }
+
+    /**
+     * 设置池中图片占用内存的上限（字节），默认为最大内存的1/8
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 池中图片当前占用的内存（字节）
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * 回收池中所有的图片
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /** 获取到可复用图片的次数 */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /** 没有可复用图片的次数 */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** 放回池中的次数 */
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    /** 超过上限被回收的次数 */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int total = mHitCount + mMissCount;
+        return "BitmapPool[size=" + mSize + "/" + mMaxSize + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", hitRate=" + (total == 0 ? 0 : mHitCount * 100 / total) + "%, puts=" + mPutCount
+                + ", evictions=" + mEvictionCount + "]";
+    }
+
+    private static int getSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= 19) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * 向上取整到2的幂
+     */
+    private static int bucketOf(int bytes) {
+        int key = Integer.highestOneBit(Math.max(1, bytes));
+        return key == bytes || key >= (1 << 30) ? key : key << 1;
+    }
+}
@@ -4,47 +4,63 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 
+import cn.hzw.graffiti.core.ArrowGeometry;
+import cn.hzw.graffiti.core.GraffitiMath;
+
 /**
  * Created by Administrator on 2016/9/3.
  */
 public class DrawUtil {
 
+    /**
+     * 绘制图形时复用的对象，绘制时不再分配内存
+     * 不是线程安全的，每个绘制线程使用自己的实例
+     */
+    public static class Geometry {
+        private final Path mLinePath = new Path();
+        private final Path mTriangle = new Path();
+        private final ArrowGeometry mArrow = new ArrowGeometry();
+        private final float[] mVertices = new float[ArrowGeometry.VERTEX_COUNT];
+    }
+
+    /** 没有传入Geometry时每个线程复用的实例 */
+    private static final ThreadLocal<Geometry> sGeometry = new ThreadLocal<Geometry>() {
+        @Override
+        protected Geometry initialValue() {
+            return new Geometry();
+        }
+    };
+
     public static void drawArrow(Canvas canvas, float sx, float sy, float ex,
                                  float ey, Paint paint) {
-        float arrowSize = paint.getStrokeWidth();
-        double H = arrowSize; // 箭头高度
-        double L = arrowSize / 2; // 底边的一�?
+        drawArrow(canvas, sx, sy, ex, ey, paint, sGeometry.get());
+    }
+
+    /**
+     * 绘制箭头，顶点由ArrowGeometry计算
+     */
+    public static void drawArrow(Canvas canvas, float sx, float sy, float ex,
+                                 float ey, Paint paint, Geometry geometry) {
+        float[] v = geometry.mVertices;
+        if (!geometry.mArrow.compute(sx, sy, ex, ey, paint.getStrokeWidth(), v)) { // 起点终点重合，没有方向
+            return;
+        }
 
-        double awrad = Math.atan(L / 2 / H); // 箭头角度
-        double arraow_len = Math.sqrt(L / 2 * L / 2 + H * H) - 5; // 箭头的长�?
-        double[] arrXY_1 = rotateVec(ex - sx, ey - sy, awrad, true,
-                arraow_len);
-        double[] arrXY_2 = rotateVec(ex - sx, ey - sy, -awrad, true,
-                arraow_len);
-        float x_3 = (float) (ex - arrXY_1[0]); // (x3,y3)是第�?端点
-        float y_3 = (float) (ey - arrXY_1[1]);
-        float x_4 = (float) (ex - arrXY_2[0]); // (x4,y4)是第二端�?
-        float y_4 = (float) (ey - arrXY_2[1]);
         // 画线
-        Path linePath = new Path();
+        Path linePath = geometry.mLinePath;
+        linePath.reset();
         linePath.moveTo(sx, sy);
-        linePath.lineTo(x_3, y_3);
-        linePath.lineTo(x_4, y_4);
+        linePath.lineTo(v[0], v[1]);
+        linePath.lineTo(v[2], v[3]);
         linePath.close();
         canvas.drawPath(linePath, paint);
 
-        awrad = Math.atan(L / H); // 箭头角度
-        arraow_len = Math.sqrt(L * L + H * H); // 箭头的长�?
-        arrXY_1 = rotateVec(ex - sx, ey - sy, awrad, true, arraow_len);
-        arrXY_2 = rotateVec(ex - sx, ey - sy, -awrad, true, arraow_len);
-        x_3 = (float) (ex - arrXY_1[0]); // (x3,y3)是第�?端点
-        y_3 = (float) (ey - arrXY_1[1]);
-        x_4 = (float) (ex - arrXY_2[0]); // (x4,y4)是第二端�?
-        y_4 = (float) (ey - arrXY_2[1]);
-        Path triangle = new Path();
+        // 画箭头
+        Path triangle = geometry.mTriangle;
+        triangle.reset();
         triangle.moveTo(ex, ey);
-        triangle.lineTo(x_3, y_3);
-        triangle.lineTo(x_4, y_4);
+        triangle.lineTo(v[4], v[5]);
+        triangle.lineTo(v[6], v[7]);
         triangle.close();
         canvas.drawPath(triangle, paint);
     }
@@ -52,18 +68,16 @@ public class DrawUtil {
     // 计算 向量（px,py�? 旋转ang角度后的新长�?
     public static double[] rotateVec(float px, float py, double ang,
                                      boolean isChLen, double newLen) {
-        double mathstr[] = new double[2];
-        // 矢量旋转函数，参数含义分别是x分量、y分量、旋转角、是否改变长度�?�新长度
-        double vx = px * Math.cos(ang) - py * Math.sin(ang);
-        double vy = px * Math.sin(ang) + py * Math.cos(ang);
-        if (isChLen) {
-            double d = Math.sqrt(vx * vx + vy * vy);
-            vx = vx / d * newLen;
-            vy = vy / d * newLen;
-        }
-        mathstr[0] = vx;
-        mathstr[1] = vy;
-        return mathstr;
+        return rotateVec(px, py, ang, isChLen, newLen, new double[2]);
+    }
+
+    /**
+     * 同rotateVec，结果写入调用者提供的数组mathstr
+     */
+    public static double[] rotateVec(float px, float py, double ang,
+                                     boolean isChLen, double newLen, double[] mathstr) {
+        // 矢量旋转函数，参数含义分别是x分量、y分量、旋转角、是否改变长度、新长度
+        return GraffitiMath.rotateVec(px, py, ang, isChLen, newLen, mathstr);
     }
 
     public static void drawLine(Canvas canvas, float sx, float sy, float dx, float dy, Paint paint) {
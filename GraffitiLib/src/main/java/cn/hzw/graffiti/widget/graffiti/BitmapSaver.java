@@ -0,0 +1,333 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.forward.androids.utils.ThreadUtil;
+import cn.hzw.graffiti.util.BitmapPool;
+
+/**
+ * 在子线程中把图片编码保存到文件，图片也可以在子线程中由TiledExporter按原图的分辨率导出
+ * 有多个输出时，按输出从大到小的顺序把图片逐级缩小一半（mip链），每个输出由不小于它的最近一级缩放得到，不需要重新解码；
+ * 每个输出的图片准备好后立即在线程池中编码，各个输出同时编码。
+ * 编码结果经缓冲区写入同目录下的临时文件，完成后重命名为目标文件，失败或取消时不会留下不完整的文件。
+ * 回调都在主线程中执行，保存结束后把图片放回图片池
+ */
+class BitmapSaver implements Runnable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Bitmap mBitmap;
+    private final TiledExporter mExporter;
+    private final List<SaveSpec> mSpecs;
+    private final GraffitiView.SaveListener mListener;
+    private volatile boolean mCancelled;
+
+    /** 所有输出已经写入的字节数 */
+    private final AtomicLong mWritten = new AtomicLong();
+    /** 合成图片的引用数：缩放链和使用原来大小的编码任务，为0时放回图片池 */
+    private final AtomicInteger mSourceRefs = new AtomicInteger(1);
+    private Bitmap mSource;
+    private final Paint mScalePaint;
+    private final Rect mScaleRect = new Rect();
+
+    BitmapSaver(Bitmap bitmap, List<SaveSpec> specs, GraffitiView.SaveListener listener) {
+        this(bitmap, null, specs, listener);
+    }
+
+    /**
+     * 先导出原图分辨率的图片再保存
+     */
+    BitmapSaver(TiledExporter exporter, List<SaveSpec> specs, GraffitiView.SaveListener listener) {
+        this(null, exporter, specs, listener);
+    }
+
+    private BitmapSaver(Bitmap bitmap, TiledExporter exporter, List<SaveSpec> specs,
+                        GraffitiView.SaveListener listener) {
+        if (specs == null || specs.isEmpty()) {
+            throw new RuntimeException("no output to save!!!");
+        }
+        mBitmap = bitmap;
+        mExporter = exporter;
+        mSpecs = new ArrayList<SaveSpec>(specs);
+        mListener = listener;
+        mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mScalePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * 取消保存，已取消的保存不再回调
+     */
+    void cancel() {
+        mCancelled = true;
+        if (mExporter != null) { // 不等待正在绘制的图块，取消后的图块被丢弃
+            mExporter.cancel();
+        }
+    }
+
+    /**
+     * 保存不再使用涂鸦图片和橡皮擦底图后执行，用于回收这些图片；直接保存图片时不使用，立即执行
+     */
+    void runWhenFinished(Runnable runnable) {
+        if (mExporter != null) {
+            mExporter.runWhenFinished(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    @Override
+    public void run() {
+        Bitmap bitmap = mBitmap;
+        if (bitmap == null) {
+            String error = null;
+            try {
+                bitmap = mExporter.exportBitmap();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                error = e.getMessage();
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                error = "out of memory";
+            }
+            if (bitmap == null) { // 导出失败或已取消
+                for (int i = 0; i < mSpecs.size(); i++) {
+                    postResult(mSpecs.get(i).mFile, false, error);
+                }
+                return;
+            }
+        }
+        mSource = bitmap;
+        saveAll();
+    }
+
+    /**
+     * 从大到小依次准备每个输出的图片并交给线程池编码
+     */
+    private void saveAll() {
+        Collections.sort(mSpecs, new Comparator<SaveSpec>() {
+            @Override
+            public int compare(SaveSpec lhs, SaveSpec rhs) {
+                int l = lhs.mMaxSize > 0 ? lhs.mMaxSize : Integer.MAX_VALUE;
+                int r = rhs.mMaxSize > 0 ? rhs.mMaxSize : Integer.MAX_VALUE;
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        int width = mSource.getWidth(), height = mSource.getHeight();
+        Bitmap level = mSource;
+        int i = 0;
+        String error = null;
+        try {
+            for (; i < mSpecs.size() && !mCancelled; i++) {
+                SaveSpec spec = mSpecs.get(i);
+                int targetWidth = spec.getTargetWidth(width, height);
+                int targetHeight = spec.getTargetHeight(width, height);
+                if (targetWidth == width && targetHeight == height) {
+                    mSourceRefs.incrementAndGet();
+                    encode(spec, mSource);
+                    continue;
+                }
+                // 每次缩小一半时双线性过滤正好是2x2的平均值，逐级缩小避免一次大比例缩小产生锯齿
+                while (level.getWidth() / 2 >= targetWidth && level.getHeight() / 2 >= targetHeight) {
+                    Bitmap half = scale(level, level.getWidth() / 2, level.getHeight() / 2);
+                    release(level);
+                    level = half;
+                }
+                encode(spec, scale(level, targetWidth, targetHeight));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            error = e.getMessage();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            error = "out of memory";
+        } finally {
+            release(level);
+        }
+        for (; i < mSpecs.size(); i++) { // 缩放失败或者已经取消，没有交给编码的输出也要回调
+            postResult(mSpecs.get(i).mFile, false, mCancelled ? "cancelled" : error);
+        }
+    }
+
+    private Bitmap scale(Bitmap src, int width, int height) {
+        Bitmap.Config config = src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap dst = BitmapPool.getInstance().obtain(width, height, config);
+        mScaleRect.set(0, 0, width, height);
+        new Canvas(dst).drawBitmap(src, null, mScaleRect, mScalePaint);
+        return dst;
+    }
+
+    private void release(Bitmap bitmap) {
+        if (bitmap != mSource) {
+            BitmapPool.getInstance().put(bitmap);
+        } else if (mSourceRefs.decrementAndGet() == 0) {
+            BitmapPool.getInstance().put(mSource);
+        }
+    }
+
+    /**
+     * 在线程池中编码，无论成功与否都会回调并释放图片
+     */
+    private void encode(final SaveSpec spec, final Bitmap bitmap) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    save(spec, bitmap);
+                } finally {
+                    release(bitmap);
+                }
+            }
+        };
+        try {
+            ThreadUtil.getInstance().execute(task);
+        } catch (RuntimeException e) { // 线程池拒绝时在当前线程中编码
+            task.run();
+        }
+    }
+
+    private void save(SaveSpec spec, Bitmap bitmap) {
+        File file = spec.mFile;
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = null;
+        boolean success = false;
+        String error = null;
+        try {
+            File parent = file.getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            fileStream = new FileOutputStream(tmp);
+            FileChannel channel = fileStream.getChannel();
+            ChannelOutputStream out = new ChannelOutputStream(channel);
+            if (!bitmap.compress(spec.mFormat, spec.mQuality, out) || mCancelled) {
+                throw new IOException(mCancelled ? "cancelled" : "compress failed");
+            }
+            out.flush();
+            channel.force(true); // 数据写入磁盘后再重命名
+            fileStream.close();
+            fileStream = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + file);
+            }
+            success = true;
+        } catch (IOException e) {
+            if (!mCancelled) {
+                e.printStackTrace();
+            }
+            error = e.getMessage();
+        } catch (RuntimeException e) { // 如图片已被回收
+            e.printStackTrace();
+            error = e.getMessage();
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            error = "out of memory";
+        } finally {
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!success) {
+                tmp.delete();
+            }
+        }
+        postResult(file, success, error);
+    }
+
+    private void postResult(final File file, final boolean result, final String msg) {
+        ThreadUtil.getInstance().runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    return;
+                }
+                if (result) {
+                    mListener.onSaveCompleted(file);
+                } else {
+                    mListener.onSaveFailed(file, msg);
+                }
+            }
+        });
+    }
+
+    private void postProgress(final long bytes) {
+        ThreadUtil.getInstance().runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    mListener.onSaveProgress(bytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * 先写入缓冲区，缓冲区满时一次性写入文件通道，同时报告进度和检查是否取消
+     */
+    private class ChannelOutputStream extends OutputStream {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelOutputStream(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+            mBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!mBuffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, mBuffer.remaining());
+                mBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mCancelled) {
+                throw new InterruptedIOException("cancelled");
+            }
+            if (mBuffer.position() == 0) {
+                return;
+            }
+            mBuffer.flip();
+            long written = 0;
+            while (mBuffer.hasRemaining()) {
+                written += mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+            postProgress(mWritten.addAndGet(written));
+        }
+    }
+}
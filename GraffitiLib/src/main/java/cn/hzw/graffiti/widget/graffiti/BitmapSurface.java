@@ -0,0 +1,91 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import cn.hzw.graffiti.util.BitmapPool;
+
+/**
+ * 整张图片大小的绘制表面
+ */
+class BitmapSurface extends GraffitiSurface {
+
+    /** 用绘制涂鸦的图片 */
+    private Bitmap mGraffitiBitmap;
+    /** 图片的Canvas */
+    private Canvas mBitmapCanvas;
+    private boolean mReleased;
+
+    BitmapSurface(Bitmap bitmap) {
+        super(bitmap);
+        reset();
+    }
+
+    @Override
+    Bitmap.Config getConfig() {
+        return mGraffitiBitmap.getConfig();
+    }
+
+    @Override
+    void draw(RectF bounds, Painter painter) {
+        painter.paint(mBitmapCanvas);
+    }
+
+    @Override
+    void read(Canvas canvas, int x, int y, int width, int height, Paint paint) {
+        canvas.drawBitmap(mGraffitiBitmap, -x, -y, paint);
+    }
+
+    @Override
+    void drawTo(Canvas canvas, float left, float top) {
+        canvas.drawBitmap(mGraffitiBitmap, left, top, null);
+    }
+
+    /**
+     * 把原图的像素复制到已有的图片中，撤销和清屏时不再重新分配图片和Canvas
+     */
+    @Override
+    void reset() {
+        if (mGraffitiBitmap == null || mGraffitiBitmap.isRecycled()) {
+            mGraffitiBitmap = BitmapPool.getInstance().obtain(mBitmap.getWidth(), mBitmap.getHeight(), Bitmap.Config.RGB_565);
+            mBitmapCanvas = new Canvas(mGraffitiBitmap);
+        }
+        mBitmapCanvas.drawBitmap(mBitmap, 0, 0, getCopyPaint());
+    }
+
+    @Override
+    Bitmap getBitmap() {
+        return mGraffitiBitmap;
+    }
+
+    @Override
+    Bitmap copyBitmap() {
+        Bitmap bitmap = BitmapPool.getInstance().obtain(getWidth(), getHeight(), mGraffitiBitmap.getConfig());
+        new Canvas(bitmap).drawBitmap(mGraffitiBitmap, 0, 0, getCopyPaint());
+        return bitmap;
+    }
+
+    @Override
+    long getByteCount() {
+        return mReleased ? 0 : GraffitiMetrics.getByteCount(mGraffitiBitmap);
+    }
+
+    @Override
+    boolean isRecycled() {
+        return mReleased || mGraffitiBitmap.isRecycled();
+    }
+
+    /**
+     * 把图片放回图片池，重复调用时不会重复放回
+     */
+    @Override
+    void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        BitmapPool.getInstance().put(mGraffitiBitmap);
+    }
+}
@@ -0,0 +1,246 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.hzw.graffiti.core.GraffitiMath;
+import cn.hzw.graffiti.util.BitmapDecodeUtil;
+import cn.hzw.graffiti.util.BitmapPool;
+import cn.hzw.graffiti.widget.graffiti.info.GraffitiPath;
+
+/**
+ * 不依赖View的批量涂鸦渲染：把笔画按照与GraffitiView相同的画笔、形状和橡皮擦规则绘制到原图上，得到涂鸦后的图片
+ * 任务在固定大小的线程池中执行，等待执行的任务超过上限时submit()阻塞。
+ * 每张图片（原图、结果和橡皮擦底图）占用的内存不超过上限，从文件解码的原图超过上限时按2的幂采样，笔画随之缩小
+ */
+public class GraffitiBatchRenderer {
+
+    /**
+     * 渲染任务
+     */
+    public static class Job {
+        /** 原图的路径，与mImage二选一 */
+        public final String mImagePath;
+        /** 已经解码的原图，由调用者负责回收 */
+        public final Bitmap mImage;
+        /** 按绘制顺序的笔画，坐标为原图（未采样）的图片坐标，不区分图层 */
+        public final List<GraffitiPath> mPaths;
+        /** 橡皮擦底图，为null时使用原图 */
+        public String mEraserPath;
+        /** 橡皮擦底图是否调整到跟原图一样的大小 */
+        public boolean mEraserImageIsResizeable = true;
+        /** 调用者自定义的数据 */
+        public Object mTag;
+
+        public Job(String imagePath, List<GraffitiPath> paths) {
+            mImagePath = imagePath;
+            mImage = null;
+            mPaths = paths;
+        }
+
+        public Job(Bitmap image, List<GraffitiPath> paths) {
+            mImagePath = null;
+            mImage = image;
+            mPaths = paths;
+        }
+    }
+
+    /**
+     * 渲染结果的回调，在执行任务的子线程中回调
+     */
+    public interface RenderListener {
+
+        /**
+         * @param bitmap 涂鸦后的图片，由调用者负责回收或放回图片池
+         */
+        void onRendered(Job job, Bitmap bitmap);
+
+        void onRenderFailed(Job job, String msg);
+    }
+
+    /** 结果图片每个像素的字节数，与涂鸦表面一样使用RGB_565 */
+    private static final int RESULT_BYTES_PER_PIXEL = 2;
+    /** 解码后的原图和橡皮擦底图每个像素的字节数 */
+    private static final int SOURCE_BYTES_PER_PIXEL = 4;
+
+    private final ThreadPoolExecutor mExecutor;
+    private volatile long mMaxImageBytes;
+    private final Paint mCopyPaint;
+
+    /**
+     * @param threadCount   同时渲染的图片数，为0时使用CPU核数
+     * @param queueCapacity 等待执行的任务数上限
+     * @param maxImageBytes 每张图片占用内存的上限（字节）
+     */
+    public GraffitiBatchRenderer(int threadCount, int queueCapacity, long maxImageBytes) {
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+        mMaxImageBytes = maxImageBytes;
+        mCopyPaint = new Paint();
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "GraffitiBatch-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) { // 队列已满时等待
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("renderer is shut down");
+                }
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 设置每张图片占用内存的上限（字节），只影响之后开始的任务
+     */
+    public void setMaxImageBytes(long maxImageBytes) {
+        mMaxImageBytes = maxImageBytes;
+    }
+
+    public long getMaxImageBytes() {
+        return mMaxImageBytes;
+    }
+
+    /**
+     * 提交任务，等待执行的任务超过上限时阻塞，不要在主线程中提交大量任务
+     */
+    public void submit(final Job job, final RenderListener listener) {
+        if (listener == null) {
+            throw new RuntimeException("RenderListener is null!!!");
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap;
+                try {
+                    bitmap = render(job);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    listener.onRenderFailed(job, e.getMessage());
+                    return;
+                } catch (OutOfMemoryError e) {
+                    e.printStackTrace();
+                    listener.onRenderFailed(job, "out of memory");
+                    return;
+                }
+                listener.onRendered(job, bitmap);
+            }
+        });
+    }
+
+    /**
+     * 在当前线程中渲染，可以在多个线程中同时调用
+     *
+     * @return 涂鸦后的图片，由调用者负责回收或放回图片池
+     */
+    public Bitmap render(Job job) {
+        long maxBytes = mMaxImageBytes;
+        int bytesPerPixel = RESULT_BYTES_PER_PIXEL + (job.mEraserPath != null ? SOURCE_BYTES_PER_PIXEL : 0);
+        Bitmap image;
+        int sampleSize = 1;
+        if (job.mImage != null) {
+            image = job.mImage;
+            long bytes = GraffitiMetrics.getByteCount(image)
+                    + (long) image.getWidth() * image.getHeight() * bytesPerPixel;
+            if (bytes > maxBytes) {
+                throw new RuntimeException("image needs " + bytes + " bytes, exceeds the limit " + maxBytes);
+            }
+        } else {
+            int[] size = new int[2];
+            if (!BitmapDecodeUtil.readImageSize(job.mImagePath, size)) {
+                throw new RuntimeException("can't decode " + job.mImagePath);
+            }
+            bytesPerPixel += SOURCE_BYTES_PER_PIXEL;
+            sampleSize = GraffitiMath.sampleSizeToFit(size[0], size[1], bytesPerPixel, maxBytes);
+            if (sampleSize == 0) {
+                throw new RuntimeException("image " + job.mImagePath + " can't fit in " + maxBytes + " bytes");
+            }
+            image = BitmapDecodeUtil.decodeWithSampleSize(job.mImagePath, sampleSize);
+            if (image == null) {
+                throw new RuntimeException("can't decode " + job.mImagePath);
+            }
+        }
+
+        Bitmap eraser = null;
+        Bitmap result = null;
+        try {
+            int width = image.getWidth(), height = image.getHeight();
+            GraffitiRenderer renderer = new GraffitiRenderer(image);
+            if (sampleSize != 1) {
+                renderer.setShaderScale(sampleSize);
+            }
+            if (job.mEraserPath != null) {
+                eraser = BitmapDecodeUtil.decodeEraser(job.mEraserPath, width, height, job.mEraserImageIsResizeable);
+                if (eraser != null) { // 解码失败时与GraffitiView一样使用原图
+                    renderer.setEraser(eraser);
+                }
+            }
+
+            result = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.RGB_565);
+            Canvas canvas = new Canvas(result);
+            canvas.drawBitmap(image, 0, 0, mCopyPaint);
+            if (sampleSize != 1) {
+                canvas.scale(1f / sampleSize, 1f / sampleSize);
+            }
+            for (int i = 0; i < job.mPaths.size(); i++) {
+                renderer.draw(canvas, job.mPaths.get(i));
+            }
+            Bitmap bitmap = result;
+            result = null;
+            return bitmap;
+        } finally {
+            if (result != null) { // 绘制失败
+                BitmapPool.getInstance().put(result);
+            }
+            if (eraser != null) {
+                BitmapPool.getInstance().put(eraser);
+            }
+            if (image != job.mImage) {
+                BitmapPool.getInstance().put(image);
+            }
+        }
+    }
+
+    /**
+     * 不再接受新的任务，已经提交的任务继续执行
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 等待已经提交的任务全部完成，需要先调用shutdown()
+     *
+     * @return 超时返回false
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
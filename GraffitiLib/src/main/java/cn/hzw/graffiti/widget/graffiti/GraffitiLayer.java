@@ -0,0 +1,186 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import cn.hzw.graffiti.util.BitmapPool;
+import cn.hzw.graffiti.widget.graffiti.info.GraffitiPath;
+
+/**
+ * 涂鸦图层，拥有自己的笔画堆栈
+ * 底层图层的笔画直接绘制在涂鸦表面（原图）上；其他图层的笔画绘制在各自透明的缓存图片中，
+ * 缓存在第一次需要时才分配，只有失效的图层才重新绘制。图片很大时缓存可以按比例缩小，绘制时再放大到图片的大小。
+ * 除了getter，只能在主线程中通过GraffitiView修改
+ */
+public class GraffitiLayer {
+
+    private final String mName;
+    private final int mWidth, mHeight; // 图片的大小
+    boolean mVisible = true;
+    int mAlpha = 255;
+    /** 图层中的笔画，按绘制顺序 */
+    final CopyOnWriteArrayList<GraffitiPath> mPaths = new CopyOnWriteArrayList<GraffitiPath>();
+
+    private Bitmap mCache;
+    private Canvas mCacheCanvas;
+    private boolean mCacheValid;
+    /** 缓存相对图片的缩放比例，不大于1 */
+    private float mCacheScale = 1;
+    private final RectF mDstRect = new RectF();
+    private final RectF mRedrawRect = new RectF();
+
+    GraffitiLayer(String name, int width, int height) {
+        mName = name;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isVisible() {
+        return mVisible;
+    }
+
+    /**
+     * 不透明度，0~255
+     */
+    public int getAlpha() {
+        return mAlpha;
+    }
+
+    public int getPathCount() {
+        return mPaths.size();
+    }
+
+    /**
+     * 图层中的笔画，只读
+     */
+    public List<GraffitiPath> getPaths() {
+        return mPaths;
+    }
+
+    /**
+     * 把新的笔画绘制到缓存中，缓存已经失效时等下次获取缓存时再整体重新绘制
+     */
+    void drawPath(GraffitiRenderer renderer, GraffitiPath path) {
+        if (mCacheValid) {
+            renderer.draw(mCacheCanvas, path);
+        }
+    }
+
+    /**
+     * 只重新绘制rect区域：清空该区域，再重新绘制与之相交的笔画
+     */
+    void redrawRegion(GraffitiRenderer renderer, RectF rect) {
+        if (!mCacheValid) {
+            return;
+        }
+        // 缓存缩小时裁剪的边界会取整到缓存的像素，向外扩大一个缓存像素，保证清空的区域都被重新绘制
+        float outset = mCacheScale < 1 ? (float) Math.ceil(1 / mCacheScale) : 0;
+        mRedrawRect.set(rect);
+        mRedrawRect.inset(-outset, -outset);
+        mCacheCanvas.save();
+        mCacheCanvas.clipRect(mRedrawRect);
+        mCacheCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        for (int i = 0; i < mPaths.size(); i++) {
+            GraffitiPath path = mPaths.get(i);
+            if (RectF.intersects(path.mBounds, mRedrawRect)) {
+                renderer.draw(mCacheCanvas, path);
+            }
+        }
+        mCacheCanvas.restore();
+    }
+
+    /**
+     * 获取图层的缓存，需要时分配并重新绘制
+     *
+     * @return 图层中没有笔画时返回null
+     */
+    Bitmap getCache(GraffitiRenderer renderer) {
+        if (mPaths.isEmpty()) {
+            return null;
+        }
+        if (mCache == null) {
+            int width = Math.max(1, Math.round(mWidth * mCacheScale));
+            int height = Math.max(1, Math.round(mHeight * mCacheScale));
+            mCache = BitmapPool.getInstance().obtain(width, height, Bitmap.Config.ARGB_8888);
+            mCacheCanvas = new Canvas(mCache);
+            mCacheCanvas.scale(width / (float) mWidth, height / (float) mHeight); // 笔画仍然按图片坐标绘制
+            mCacheValid = false;
+        }
+        if (!mCacheValid) {
+            mCacheCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            for (int i = 0; i < mPaths.size(); i++) {
+                renderer.draw(mCacheCanvas, mPaths.get(i));
+            }
+            mCacheValid = true;
+        }
+        return mCache;
+    }
+
+    /**
+     * 把图层的缓存按图片的大小绘制到canvas上，canvas的坐标系为图片坐标系
+     */
+    void draw(Canvas canvas, GraffitiRenderer renderer, Paint paint) {
+        Bitmap cache = getCache(renderer);
+        if (cache == null) {
+            return;
+        }
+        if (cache.getWidth() == mWidth && cache.getHeight() == mHeight) {
+            canvas.drawBitmap(cache, 0, 0, paint);
+        } else {
+            mDstRect.set(0, 0, mWidth, mHeight);
+            canvas.drawBitmap(cache, null, mDstRect, paint);
+        }
+    }
+
+    /**
+     * 设置缓存的缩放比例，比例变化时释放缓存，下次需要时按新的大小重新绘制
+     *
+     * @param scale (0, 1]
+     */
+    void setCacheScale(float scale) {
+        if (mCacheScale == scale) {
+            return;
+        }
+        mCacheScale = scale;
+        release();
+    }
+
+    /**
+     * 清空笔画，缓存原地擦除，不重新分配
+     */
+    void clear() {
+        mPaths.clear();
+        if (mCacheValid) {
+            mCacheCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+        }
+    }
+
+    /**
+     * 缓存占用的内存（字节），没有分配缓存时为0
+     */
+    long getByteCount() {
+        return GraffitiMetrics.getByteCount(mCache);
+    }
+
+    /**
+     * 把缓存放回图片池，下次需要时重新分配
+     */
+    void release() {
+        if (mCache != null) {
+            BitmapPool.getInstance().put(mCache);
+            mCache = null;
+            mCacheCanvas = null;
+        }
+        mCacheValid = false;
+    }
+}
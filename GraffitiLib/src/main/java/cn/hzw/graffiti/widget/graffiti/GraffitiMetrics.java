@@ -0,0 +1,135 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Locale;
+
+import cn.hzw.graffiti.core.RingHistogram;
+
+/**
+ * GraffitiView的性能统计，见{@link GraffitiView#setMetricsEnabled(boolean)}
+ * 耗时单位为纳秒，每项只保留最近的若干个样本。绘制在主线程中记录，提交和撤销可能在渲染线程中记录，可以在任意线程中读取
+ */
+public class GraffitiMetrics {
+
+    /** 每项统计保留的样本个数 */
+    public static final int CAPACITY = 256;
+
+    private final RingHistogram mDrawTime = new RingHistogram(CAPACITY);
+    private final RingHistogram mCommitTime = new RingHistogram(CAPACITY);
+    private final RingHistogram mUndoTime = new RingHistogram(CAPACITY);
+    private final RingHistogram mStrokePoints = new RingHistogram(CAPACITY);
+    private volatile int mPathCount;
+    private volatile long mBitmapBytes;
+
+    GraffitiMetrics() {
+    }
+
+    /**
+     * onDraw()的耗时（纳秒）
+     */
+    public RingHistogram getDrawTime() {
+        return mDrawTime;
+    }
+
+    /**
+     * 把一个笔画提交到涂鸦表面或图层缓存的耗时（纳秒），不包括等待渲染线程的时间
+     */
+    public RingHistogram getCommitTime() {
+        return mCommitTime;
+    }
+
+    /**
+     * 撤销时还原图块或重新绘制区域的耗时（纳秒）
+     */
+    public RingHistogram getUndoTime() {
+        return mUndoTime;
+    }
+
+    /**
+     * 每个手写笔画的采样点个数（简化后）
+     */
+    public RingHistogram getStrokePoints() {
+        return mStrokePoints;
+    }
+
+    /**
+     * 笔画堆栈中的笔画个数，每次回调前更新
+     */
+    public int getPathCount() {
+        return mPathCount;
+    }
+
+    /**
+     * GraffitiView持有的图片占用的内存（字节），包括原图、涂鸦表面、图层缓存和橡皮擦底图，每次回调前更新
+     */
+    public long getBitmapBytes() {
+        return mBitmapBytes;
+    }
+
+    void setPathCount(int pathCount) {
+        mPathCount = pathCount;
+    }
+
+    void setBitmapBytes(long bitmapBytes) {
+        mBitmapBytes = bitmapBytes;
+    }
+
+    /**
+     * 清空所有样本
+     */
+    public void reset() {
+        mDrawTime.reset();
+        mCommitTime.reset();
+        mUndoTime.reset();
+        mStrokePoints.reset();
+    }
+
+    /**
+     * 每项统计一行，用于显示和日志
+     */
+    public String[] getSummary() {
+        return new String[]{
+                formatTime("draw", mDrawTime),
+                formatTime("commit", mCommitTime),
+                formatTime("undo", mUndoTime),
+                String.format(Locale.US, "points p50 %d p95 %d max %d", mStrokePoints.getPercentile(50),
+                        mStrokePoints.getPercentile(95), mStrokePoints.getMax()),
+                String.format(Locale.US, "paths %d  bitmaps %.1fMB", mPathCount, mBitmapBytes / 1024f / 1024f)
+        };
+    }
+
+    private static String formatTime(String name, RingHistogram histogram) {
+        return String.format(Locale.US, "%s p50 %.2f p95 %.2f max %.2f ms (%d)", name,
+                histogram.getPercentile(50) / 1e6f, histogram.getPercentile(95) / 1e6f,
+                histogram.getMax() / 1e6f, histogram.getTotalCount());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("GraffitiMetrics[");
+        String[] summary = getSummary();
+        for (int i = 0; i < summary.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(summary[i]);
+        }
+        return builder.append("]").toString();
+    }
+
+    /**
+     * 图片占用的内存（字节），图片为null或已经回收时为0
+     * 4.4以上从图片池复用的图片可能比当前大小占用更多的内存，按实际分配的大小计算
+     */
+    static long getByteCount(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return 0;
+        }
+        if (Build.VERSION.SDK_INT >= 19) {
+            return bitmap.getAllocationByteCount();
+        }
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,164 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Shader;
+
+import cn.hzw.graffiti.util.DrawUtil;
+import cn.hzw.graffiti.widget.graffiti.info.GraffitiPath;
+import cn.hzw.graffiti.widget.graffiti.info.Pen;
+import cn.hzw.graffiti.widget.graffiti.info.Shape;
+
+/**
+ * 把已经提交的笔画绘制到图片坐标系的Canvas上，不依赖View
+ * 每个实例持有自己的Paint和BitmapShader，只能在一个线程中使用，多个线程同时绘制时每个线程创建一个实例
+ */
+class GraffitiRenderer {
+
+    private final Paint mPaint;
+    private final BitmapShader mBitmapShader; // 仿制
+    private volatile BitmapShader mBitmapShaderEraser; // 橡皮擦底图，可能在主线程中更换
+    private final DrawUtil.Geometry mGeometry = new DrawUtil.Geometry();
+    /** 橡皮擦是否擦成透明，用于绘制到透明的图层上 */
+    private boolean mEraseToTransparent;
+    private PorterDuffXfermode mClearMode;
+    /** 原图和橡皮擦底图相对于笔画坐标的缩放，不为1时仿制的变换矩阵需要加上该缩放 */
+    private float mShaderScale = 1;
+    private Matrix mShaderMatrix; // 仿制时临时使用
+
+    /**
+     * @param bitmap 原图，同时作为默认的橡皮擦底图
+     */
+    GraffitiRenderer(Bitmap bitmap) {
+        mPaint = new Paint();
+        mPaint.setAntiAlias(true);
+        mPaint.setStrokeJoin(Paint.Join.ROUND);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);// 圆滑
+
+        mBitmapShader = new BitmapShader(bitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+        mBitmapShaderEraser = new BitmapShader(bitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+    }
+
+    /**
+     * 设置自定义的橡皮擦底图，底图需要已经调整成需要的大小，绘制时不再缩放
+     */
+    void setEraser(Bitmap eraser) {
+        BitmapShader shader = new BitmapShader(eraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+        if (mShaderScale != 1) {
+            Matrix matrix = new Matrix();
+            matrix.setScale(mShaderScale, mShaderScale);
+            shader.setLocalMatrix(matrix);
+        }
+        mBitmapShaderEraser = shader;
+    }
+
+    /**
+     * 设置橡皮擦底图及其变换矩阵，底图不是笔画坐标系中的图片时使用，例如原图的一个图块
+     *
+     * @param matrix 底图像素坐标到笔画坐标的变换
+     */
+    void setEraser(Bitmap eraser, Matrix matrix) {
+        BitmapShader shader = new BitmapShader(eraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+        shader.setLocalMatrix(matrix);
+        mBitmapShaderEraser = shader;
+    }
+
+    /**
+     * 设置原图和橡皮擦底图的缩放，原图是笔画所在图片的采样图时使用，canvas同时需要缩放1/scale
+     *
+     * @param scale 笔画坐标与原图像素的比例，例如采样率
+     */
+    void setShaderScale(float scale) {
+        mShaderScale = scale;
+        if (mShaderMatrix == null) {
+            mShaderMatrix = new Matrix();
+        }
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        mBitmapShaderEraser.setLocalMatrix(matrix);
+    }
+
+    /**
+     * 设置橡皮擦是否擦成透明，默认绘制橡皮擦底图
+     */
+    void setEraseToTransparent(boolean eraseToTransparent) {
+        mEraseToTransparent = eraseToTransparent;
+        if (eraseToTransparent && mClearMode == null) {
+            mClearMode = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+        }
+    }
+
+    /**
+     * 绘制笔画，canvas的坐标系为图片坐标系
+     */
+    void draw(Canvas canvas, GraffitiPath path) {
+        mPaint.setStrokeWidth(path.mStrokeWidth);
+        mPaint.setXfermode(null);
+        switch (path.mPen) { // 设置画笔
+            case HAND:
+                mPaint.setShader(null);
+                path.mColor.initColor(mPaint, null);
+                break;
+            case COPY: // 调整copy图片位置
+                if (mShaderScale == 1) {
+                    mBitmapShader.setLocalMatrix(path.mMatrix);
+                } else {
+                    mShaderMatrix.set(path.mMatrix);
+                    mShaderMatrix.preScale(mShaderScale, mShaderScale);
+                    mBitmapShader.setLocalMatrix(mShaderMatrix);
+                }
+                mPaint.setShader(mBitmapShader);
+                break;
+            case ERASER:
+                if (mEraseToTransparent) {
+                    mPaint.setShader(null);
+                    mPaint.setXfermode(mClearMode);
+                } else {
+                    mPaint.setShader(mBitmapShaderEraser);
+                }
+                break;
+        }
+
+        mPaint.setStyle(Paint.Style.STROKE);
+        if (path.mShape == Shape.HAND_WRITE) { // 手写
+            canvas.drawPath(path.getPath(), mPaint);
+        } else { // 画图形
+            drawShape(canvas, path.mShape, mPaint, path.mSx, path.mSy, path.mDx, path.mDy, mGeometry);
+        }
+    }
+
+    /**
+     * 绘制图形
+     *
+     * @param geometry 当前线程复用的几何对象
+     */
+    static void drawShape(Canvas canvas, Shape shape, Paint paint, float sx, float sy, float dx, float dy, DrawUtil.Geometry geometry) {
+        switch (shape) { // 绘制图形
+            case ARROW:
+                paint.setStyle(Paint.Style.FILL);
+                DrawUtil.drawArrow(canvas, sx, sy, dx, dy, paint, geometry);
+                break;
+            case LINE:
+                DrawUtil.drawLine(canvas, sx, sy, dx, dy, paint);
+                break;
+            case FILL_CIRCLE:
+                paint.setStyle(Paint.Style.FILL);
+            case HOLLOW_CIRCLE:
+                DrawUtil.drawCircle(canvas, sx, sy,
+                        (float) Math.sqrt((sx - dx) * (sx - dx) + (sy - dy) * (sy - dy)), paint);
+                break;
+            case FILL_RECT:
+                paint.setStyle(Paint.Style.FILL);
+            case HOLLOW_RECT:
+                DrawUtil.drawRect(canvas, sx, sy, dx, dy, paint);
+                break;
+            default:
+                throw new RuntimeException("unknown shape:" + shape);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+
+/**
+ * 涂鸦的绘制表面，保存已经提交的笔画，坐标均为图片坐标
+ */
+abstract class GraffitiSurface {
+
+    /**
+     * 绘制回调，canvas已经平移到图片坐标系并裁剪到对应的区域
+     */
+    interface Painter {
+        void paint(Canvas canvas);
+    }
+
+    /** 原图 */
+    protected final Bitmap mBitmap;
+    private Paint mCopyPaint;
+
+    GraffitiSurface(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    /**
+     * 表面像素的格式
+     */
+    abstract Bitmap.Config getConfig();
+
+    /**
+     * 在bounds区域内绘制，painter可能被调用多次（每个受影响的图块一次）
+     */
+    abstract void draw(RectF bounds, Painter painter);
+
+    /**
+     * 把从(x,y)开始、大小为width*height的区域复制到canvas的(0,0)处
+     */
+    abstract void read(Canvas canvas, int x, int y, int width, int height, Paint paint);
+
+    /**
+     * 把表面绘制到canvas上，(left,top)为图片左上角的位置
+     */
+    abstract void drawTo(Canvas canvas, float left, float top);
+
+    /**
+     * 恢复成原图
+     */
+    abstract void reset();
+
+    /**
+     * 只把rect区域恢复成原图，只影响该区域内的图块
+     */
+    void restoreRegion(final RectF rect) {
+        draw(rect, new Painter() {
+            @Override
+            public void paint(Canvas canvas) {
+                canvas.save();
+                canvas.clipRect(rect);
+                canvas.drawBitmap(mBitmap, 0, 0, getCopyPaint());
+                canvas.restore();
+            }
+        });
+    }
+
+    /**
+     * 直接覆盖目标像素的画笔，用于把原图复制到已有的图片中
+     */
+    protected Paint getCopyPaint() {
+        if (mCopyPaint == null) {
+            mCopyPaint = new Paint();
+            mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        }
+        return mCopyPaint;
+    }
+
+    /**
+     * 获取合成后的完整图片，图片由表面持有，调用者不能回收，表面释放后不能再使用
+     */
+    abstract Bitmap getBitmap();
+
+    /**
+     * 获取合成后的完整图片的副本，不受之后的绘制影响，由调用者负责回收
+     */
+    abstract Bitmap copyBitmap();
+
+    /**
+     * 表面占用的内存（字节），不包括原图。用于统计，可能在渲染线程修改表面时调用，结果是近似值
+     */
+    abstract long getByteCount();
+
+    abstract boolean isRecycled();
+
+    abstract void release();
+}
@@ -0,0 +1,218 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+import cn.hzw.graffiti.core.TouchTrace;
+import cn.hzw.graffiti.widget.graffiti.info.Pen;
+import cn.hzw.graffiti.widget.graffiti.info.Shape;
+
+/**
+ * 回放{@link GraffitiView#startTraceRecording()}记录的涂鸦过程，触摸事件通过onTouchEvent()重新处理
+ * view的大小和图片的大小必须与记录时相同，否则触摸点对应的图片坐标不同。只能在主线程中使用
+ */
+public class GraffitiTracePlayer {
+
+    /**
+     * 回放完成的回调
+     */
+    public interface OnReplayListener {
+
+        /**
+         * @param pixelHash 回放后的像素哈希，见{@link GraffitiView#getPixelHash()}
+         */
+        void onReplayCompleted(GraffitiView view, long pixelHash);
+    }
+
+    private final GraffitiView mView;
+    private final TouchTrace.Reader mReader;
+    private long mDownTime;
+    /** 回放开始的时间，触摸事件的时间为该时间加上记录的相对时间 */
+    private long mBaseTime;
+    private MotionEvent.PointerCoords[] mPointerCoords;
+
+    private Handler mHandler;
+    private float mSpeed;
+    private OnReplayListener mListener;
+    private boolean mPlaying;
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    public GraffitiTracePlayer(GraffitiView view, byte[] trace) {
+        mView = view;
+        mReader = new TouchTrace.Reader(trace);
+        if (mReader.getImageWidth() != view.getImageWidth() || mReader.getImageHeight() != view.getImageHeight()) {
+            throw new RuntimeException("trace recorded with image " + mReader.getImageWidth() + "x" + mReader.getImageHeight()
+                    + ", but the image is " + view.getImageWidth() + "x" + view.getImageHeight());
+        }
+        if (mReader.getViewWidth() != view.getWidth() || mReader.getViewHeight() != view.getHeight()) {
+            throw new RuntimeException("trace recorded with view " + mReader.getViewWidth() + "x" + mReader.getViewHeight()
+                    + ", but the view is " + view.getWidth() + "x" + view.getHeight());
+        }
+    }
+
+    /**
+     * 以最快的速度同步回放所有记录，返回回放后的像素哈希
+     * 不依赖消息循环，可以在没有界面的测试环境（如Robolectric）中执行
+     */
+    public long playAll() {
+        mBaseTime = SystemClock.uptimeMillis();
+        while (mReader.next() != TouchTrace.END) {
+            dispatch();
+        }
+        return mView.getPixelHash();
+    }
+
+    /**
+     * 按记录时的节奏在主线程中回放
+     *
+     * @param speed    回放速度，1为原始速度
+     * @param listener 回放完成的回调，可以为null
+     */
+    public void start(float speed, OnReplayListener listener) {
+        if (speed <= 0) {
+            throw new RuntimeException("speed must be positive: " + speed);
+        }
+        if (mPlaying) {
+            return;
+        }
+        mSpeed = speed;
+        mListener = listener;
+        mHandler = new Handler(Looper.getMainLooper());
+        mBaseTime = SystemClock.uptimeMillis();
+        mPlaying = true;
+        if (mReader.next() == TouchTrace.END) {
+            finish();
+        } else {
+            step();
+        }
+    }
+
+    /**
+     * 停止回放，已经回放的操作不会撤销
+     */
+    public void stop() {
+        mPlaying = false;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mStep);
+        }
+    }
+
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * 回放所有已经到时间的记录，然后等待下一条记录
+     */
+    private void step() {
+        if (!mPlaying) {
+            return;
+        }
+        long elapsed = (long) ((SystemClock.uptimeMillis() - mBaseTime) * mSpeed);
+        while (mReader.getTime() <= elapsed) {
+            dispatch();
+            if (mReader.next() == TouchTrace.END) {
+                finish();
+                return;
+            }
+        }
+        mHandler.postDelayed(mStep, (long) Math.ceil((mReader.getTime() - elapsed) / mSpeed));
+    }
+
+    private void finish() {
+        mPlaying = false;
+        long hash = mView.getPixelHash();
+        if (mListener != null) {
+            mListener.onReplayCompleted(mView, hash);
+        }
+    }
+
+    /**
+     * 执行当前记录
+     */
+    private void dispatch() {
+        switch (mReader.getType()) {
+            case TouchTrace.MOTION:
+                dispatchTouchEvent();
+                break;
+            case TouchTrace.PEN:
+                Pen pen = Pen.values()[mReader.getIntValue()];
+                mView.setPen(pen);
+                if (pen == Pen.ERASER) { // 不等待子线程解码，回放时正在绘制的笔画也按底图显示
+                    mView.loadEraserNow();
+                }
+                break;
+            case TouchTrace.SHAPE:
+                mView.setShape(Shape.values()[mReader.getIntValue()]);
+                break;
+            case TouchTrace.PAINT_SIZE:
+                mView.setPaintSize(mReader.getFloatValue(0));
+                break;
+            case TouchTrace.COLOR:
+                mView.setColor(mReader.getIntValue());
+                break;
+            case TouchTrace.UNDO:
+                mView.undo();
+                break;
+            case TouchTrace.REDO:
+                mView.redo();
+                break;
+            case TouchTrace.CLEAR:
+                mView.clear();
+                break;
+            case TouchTrace.TRANSFORM:
+                mView.setScale(mReader.getFloatValue(0));
+                mView.setTrans(mReader.getFloatValue(1), mReader.getFloatValue(2));
+                break;
+            case TouchTrace.MOVING:
+                mView.setMoving(mReader.getIntValue() != 0);
+                break;
+        }
+    }
+
+    /**
+     * 由记录重新生成触摸事件，历史采样点通过addBatch()添加，与原来的事件一致
+     */
+    private void dispatchTouchEvent() {
+        int pointerCount = mReader.getPointerCount();
+        if (mPointerCoords == null || mPointerCoords.length < pointerCount) {
+            mPointerCoords = new MotionEvent.PointerCoords[Math.max(pointerCount, 2)];
+            for (int i = 0; i < mPointerCoords.length; i++) {
+                mPointerCoords[i] = new MotionEvent.PointerCoords();
+            }
+        }
+        int action = mReader.getAction();
+        float[] coords = mReader.getCoords();
+        MotionEvent event = null;
+        for (int s = 0, c = 0; s < mReader.getSampleCount(); s++) {
+            for (int i = 0; i < pointerCount; i++) {
+                MotionEvent.PointerCoords pointer = mPointerCoords[i];
+                pointer.x = coords[c++];
+                pointer.y = coords[c++];
+                pointer.pressure = coords[c++];
+                pointer.size = 1;
+            }
+            long time = mBaseTime + mReader.getSampleTime(s);
+            if (event == null) {
+                if ((action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN) {
+                    mDownTime = time;
+                }
+                event = MotionEvent.obtain(mDownTime, time, action, pointerCount, mReader.getPointerIds(),
+                        mPointerCoords, 0, 1, 1, 0, 0, 0, 0);
+            } else {
+                event.addBatch(time, mPointerCoords, 0);
+            }
+        }
+        if (event != null) {
+            mView.onTouchEvent(event);
+            event.recycle();
+        }
+    }
+}
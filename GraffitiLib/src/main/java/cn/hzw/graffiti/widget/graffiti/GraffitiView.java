@@ -2,22 +2,40 @@ package cn.hzw.graffiti.widget.graffiti;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
 import android.graphics.Shader;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewConfiguration;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import cn.forward.androids.utils.ImageUtils;
+import cn.forward.androids.utils.ThreadUtil;
 import cn.forward.androids.utils.Util;
+import cn.hzw.graffiti.core.GraffitiMath;
+import cn.hzw.graffiti.core.PixelHash;
+import cn.hzw.graffiti.core.TouchTrace;
+import cn.hzw.graffiti.util.BitmapDecodeUtil;
+import cn.hzw.graffiti.util.BitmapPool;
 import cn.hzw.graffiti.util.DrawUtil;
 import cn.hzw.graffiti.widget.graffiti.info.GraffitiColor;
 import cn.hzw.graffiti.widget.graffiti.info.GraffitiPath;
@@ -40,12 +58,30 @@ public class GraffitiView extends View {
 
     /** 原图 */
     private Bitmap mBitmap;
-    /** 橡皮擦底图 */
+    /** 橡皮擦底图，第一次选择橡皮擦时才在子线程中解码 */
     private Bitmap mBitmapEraser;
-    /** 用绘制涂鸦的图片 */
-    private Bitmap mGraffitiBitmap;
-    /** 图片的Canvas */
-    private Canvas mBitmapCanvas;
+    private String mEraserPath;
+    private boolean mEraserLoading;
+    /** 是否已经调用release() */
+    private boolean mReleased;
+    /** 绘制涂鸦的表面，保存已经提交的笔画 */
+    private GraffitiSurface mSurface;
+    /** 是否使用分块的表面，图片很大时只为涂鸦过的区域分配内存 */
+    private boolean mUseTiledSurface;
+    /** 是否调用过setUseTiledSurface()，调用后不再随硬件加速自动切换 */
+    private boolean mTiledSurfaceSet;
+    /** 像素数超过该值的图片默认使用分块的表面 */
+    public static final int TILED_SURFACE_MIN_PIXELS = 8 * 1024 * 1024;
+    /** 使用分块的表面时，其他图层的缓存最多的像素数，超过时按比例缩小 */
+    private static final int LAYER_CACHE_MAX_PIXELS = 4 * 1024 * 1024;
+    /** 使用分块的表面时，按原图大小合成其他图层的条带高度 */
+    private static final int COMPOSE_BAND_HEIGHT = 256;
+    /** 底层图层的名称 */
+    public static final String BASE_LAYER_NAME = "base";
+    /** 硬件加速时单张纹理的最大边长，超过则无法上传原图 */
+    private static final int MAX_TEXTURE_SIZE = 4096;
+    /** 是否使用硬件加速绘制 */
+    private boolean mHardwareRendering = false;
 
     /** 图片适应屏幕时的缩放倍数 */
     private float mPrivateScale;
@@ -54,11 +90,12 @@ public class GraffitiView extends View {
     /** 图片居中时的偏移（肉眼看到的在屏幕上的偏移）*/
     private float mCentreTranX, mCentreTranY;
 
-    private BitmapShader mBitmapShader; // 用于涂鸦的图片上
-    private BitmapShader mBitmapShader4C;
-    private BitmapShader mBitmapShaderEraser; // 橡皮擦底图
-    private BitmapShader mBitmapShaderEraser4C;
-    private Path mCurrPath; // 当前手写的路径
+    private BitmapShader mBitmapShader4C; // 用于涂鸦的图片上
+    private BitmapShader mBitmapShaderEraser4C; // 橡皮擦底图
+    private GraffitiPath mCurrPath; // 当前手写的笔画，记录采样点
+    private boolean mRecordPressure; // 手写笔画是否记录压力
+    private float mSimplifyTolerance; // 手指抬起时简化手写笔画允许的误差（图片坐标），小于等于0时不简化
+    private OnStrokeSimplifiedListener mOnStrokeSimplifiedListener;
     private Path mCanvasPath; //
     private Path mTempPath;
     private CopyLocation mCopyLocation; // 仿制的定位器
@@ -87,6 +124,78 @@ public class GraffitiView extends View {
 
     /** 保存涂鸦操作，便于撤销 */
     private CopyOnWriteArrayList<GraffitiPath> mPathStack = new CopyOnWriteArrayList<GraffitiPath>();
+    /** 被撤销的操作，便于重做 */
+    private CopyOnWriteArrayList<GraffitiPath> mRedoStack = new CopyOnWriteArrayList<GraffitiPath>();
+    /** 被撤销的笔画原来所在的图层，与mRedoStack一一对应 */
+    private ArrayList<GraffitiLayer> mRedoLayers = new ArrayList<GraffitiLayer>();
+    /** 每次提交前笔画覆盖的图块，撤销时只还原这些图块 */
+    private TileHistory mTileHistory = new TileHistory();
+
+    /** 图层，第0个为底层图层，其笔画直接绘制在涂鸦表面上，其他图层按顺序叠加在上面 */
+    private final ArrayList<GraffitiLayer> mLayers = new ArrayList<GraffitiLayer>();
+    private GraffitiLayer mBaseLayer;
+    /** 新的笔画所在的图层 */
+    private GraffitiLayer mCurrentLayer;
+    /** 绘制其他图层的缓存用，橡皮擦擦成透明，只在主线程中使用 */
+    private GraffitiRenderer mLayerRenderer;
+    private Paint mLayerPaint;
+    /**
+     * 表面与其他图层的合成结果，需要合成时（见needComposite()）平移和缩放只绘制这一张图片，只在主线程中使用
+     * 使用分块的表面时不保留合成结果，直接在view上合成，只在保存时按原图大小合成
+     */
+    private Bitmap mCompositeBitmap;
+    private Canvas mCompositeCanvas;
+    private final RectF mBitmapRect = new RectF();
+    /** 合成结果中需要重新合成的区域（图片坐标），由mSurfaceLock保护 */
+    private final RectF mCompositeDirty = new RectF();
+
+    /** 异步提交时的后台表面，渲染线程在上面绘制完成后与mSurface交换 */
+    private GraffitiSurface mBackSurface;
+    /** 是否在渲染线程中提交笔画 */
+    private boolean mAsyncCommit = true;
+    private HandlerThread mRenderThread;
+    private Handler mRenderHandler;
+    /** 交换前后台表面、读写mPendingTasks时需要持有该锁 */
+    private final Object mSurfaceLock = new Object();
+    /** 手指已经抬起但还没有提交到前台表面的笔画，绘制时作为覆盖层 */
+    private final ArrayList<RenderTask> mPendingTasks = new ArrayList<RenderTask>();
+    /** mPendingTasks每次变化时加一，持有mSurfaceLock时修改，原图细节的笔画缓存据此判断是否失效 */
+    private int mPendingVersion;
+    /** 提交笔画用，只在渲染线程（同步提交时在主线程）中使用 */
+    private GraffitiRenderer mCommitRenderer;
+    private PathPainter mPathPainter;
+    /** 绘制覆盖层用，只在主线程中使用 */
+    private GraffitiRenderer mOverlayRenderer;
+    /** 绘制触摸时的图形用，只在主线程中使用 */
+    private DrawUtil.Geometry mGeometry = new DrawUtil.Geometry();
+
+    /** 正在进行的保存 */
+    private BitmapSaver mSaver;
+    /** 还没有结束的按原图分辨率导出，包括已取消的，结束前不能回收涂鸦图片和橡皮擦底图，只在主线程中使用 */
+    private final ArrayList<BitmapSaver> mExports = new ArrayList<BitmapSaver>();
+
+    /** 性能统计，为null时不统计，渲染线程也会读取 */
+    private volatile GraffitiMetrics mMetrics;
+    private OnMetricsListener mOnMetricsListener;
+    /** 回调和刷新统计结果的最小间隔（毫秒） */
+    private long mMetricsInterval = 1000;
+    private long mLastMetricsTime;
+    /** 是否在左上角显示统计结果 */
+    private boolean mShowMetricsHud;
+    private Paint mHudPaint;
+    private String[] mHudLines;
+
+    /** 记录触摸事件和工具切换，为null时不记录 */
+    private TouchTrace.Writer mTraceWriter;
+    private ByteArrayOutputStream mTraceBuffer;
+    /** 处理触摸事件时内部修改的缩放和偏移不单独记录，回放触摸事件时会重新产生 */
+    private boolean mTraceSuspended;
+    private int[] mTracePointerIds;
+    private float[] mTraceCoords;
+
+    /** 原图的局部细节，mBitmap为采样图且放大超过其分辨率时使用 */
+    private RegionDetail mRegionDetail;
+    private RectF mVisibleRect = new RectF();
 //    private CopyOnWriteArrayList<GraffitiPath> mPathStackBackup = new CopyOnWriteArrayList<GraffitiPath>();
 
     private Pen mPen;
@@ -100,6 +209,31 @@ public class GraffitiView extends View {
     private float mAmplifierScale = 0; // 放大镜的倍数
     private Paint mAmplifierPaint;
     private int mAmplifierHorizonX; // 放大器的位置的x坐标，使其水平居中
+    /** 放大镜内容的缓存，只有触摸点或者手指下的内容变化时才重新绘制 */
+    private Bitmap mAmplifierBitmap;
+    private Canvas mAmplifierCanvas;
+    /** 缓存对应的触摸点、缩放、偏移和内容版本 */
+    private float mAmplifierTouchX, mAmplifierTouchY, mAmplifierCachedScale, mAmplifierTransX, mAmplifierTransY;
+    private int mAmplifierVersion = -1;
+    /** 涂鸦内容的版本，内容变化（不包括触摸点、缩放和偏移）时递增，渲染线程也会修改 */
+    private final AtomicInteger mContentVersion = new AtomicInteger();
+
+    /** 局部刷新时在笔画区域外额外扩展的像素，覆盖抗锯齿的边缘 */
+    private static final int DIRTY_PADDING = 2;
+    /** 本次需要刷新的区域，上一次刷新的区域（view坐标），触摸时只刷新变化的区域 */
+    private RectF mDirtyRect = new RectF(), mLastDirtyRect = new RectF(), mInvalidRect = new RectF();
+    /** 当前手写片段的起点，即上一次quadTo的终点（屏幕坐标） */
+    private float mSegmentStartX, mSegmentStartY;
+    /** 本次移动事件中所有采样点（包括历史采样点）的包围盒（屏幕坐标），可能退化为一条线或一个点 */
+    private RectF mTouchBatchRect = new RectF();
+
+    /** 移动事件的采样点，依次为上一个触摸点、历史采样点、当前触摸点，x和y交替存放（屏幕坐标） */
+    private float[] mTouchPoints = new float[128];
+    /** mTouchPoints对应的图片坐标 */
+    private float[] mImagePoints = new float[128];
+    /** 屏幕坐标到图片坐标的变换，缩放或偏移变化时才重新计算 */
+    private Matrix mTouchMatrix = new Matrix();
+    private float mTouchMatrixScale, mTouchMatrixTransX, mTouchMatrixTransY;
 
     public GraffitiView(Context context, Bitmap bitmap, GraffitiListener listener) {
         this(context, bitmap, null, true, listener);
@@ -122,7 +256,7 @@ public class GraffitiView extends View {
             setLayerType(LAYER_TYPE_SOFTWARE, null);
         }*/
 
-        // 关闭硬件加速，因为bitmap的Canvas不支持硬件加速
+        // 关闭硬件加速，因为bitmap的Canvas不支持硬件加速，需要时可通过setHardwareRendering()开启
         if (Build.VERSION.SDK_INT >= 11) {
             setLayerType(LAYER_TYPE_SOFTWARE, null);
         }
@@ -136,10 +270,9 @@ public class GraffitiView extends View {
             throw new RuntimeException("Bitmap is null!!!");
         }
 
-        if (eraser != null) {
-            mBitmapEraser = ImageUtils.createBitmapFromPath(eraser, getContext());
-        }
+        mEraserPath = eraser;
         mEraserImageIsResizeable = eraserImageIsResizeable;
+        mUseTiledSurface = isLargeBitmap();
 
         mTouchSlop = ViewConfiguration.get(context.getApplicationContext()).getScaledTouchSlop();
 
@@ -162,16 +295,24 @@ public class GraffitiView extends View {
         mPen = Pen.HAND;
         mShape = Shape.HAND_WRITE;
 
-        this.mBitmapShader = new BitmapShader(this.mBitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
         this.mBitmapShader4C = new BitmapShader(this.mBitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
 
+        this.mBitmapShaderEraser4C = mBitmapShader4C; // 没有自定义的橡皮擦底图时使用原图
+        mCommitRenderer = new GraffitiRenderer(mBitmap);
+        mOverlayRenderer = new GraffitiRenderer(mBitmap);
+        mPathPainter = new PathPainter(mCommitRenderer);
+        mLayerRenderer = new GraffitiRenderer(mBitmap);
         if (mBitmapEraser != null) {
-            this.mBitmapShaderEraser = new BitmapShader(this.mBitmapEraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
-            this.mBitmapShaderEraser4C = new BitmapShader(this.mBitmapEraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
-        } else {
-            this.mBitmapShaderEraser = mBitmapShader;
-            this.mBitmapShaderEraser4C = mBitmapShader4C;
+            setEraserBitmap(mBitmapEraser);
         }
+        mLayerRenderer.setEraseToTransparent(true);
+        mLayerPaint = new Paint(Paint.FILTER_BITMAP_FLAG); // 缩小的图层缓存放大绘制
+
+        mLayers.clear();
+        mBaseLayer = new GraffitiLayer(BASE_LAYER_NAME, mBitmap.getWidth(), mBitmap.getHeight());
+        mBaseLayer.setCacheScale(getLayerCacheScale());
+        mLayers.add(mBaseLayer);
+        mCurrentLayer = mBaseLayer;
 
         mShaderMatrix = new Matrix();
         mShaderMatrix4C = new Matrix();
@@ -236,10 +377,24 @@ public class GraffitiView extends View {
 
     public void setMoving(boolean moving) {
         isMoving = moving;
+        recordTrace(TouchTrace.MOVING, moving ? 1 : 0);
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mTraceWriter == null) {
+            return handleTouchEvent(event);
+        }
+        recordTouchEvent(event);
+        mTraceSuspended = true;
+        try {
+            return handleTouchEvent(event);
+        } finally {
+            mTraceSuspended = false;
+        }
+    }
+
+    private boolean handleTouchEvent(MotionEvent event) {
 
         if (isMoving()) {
 
@@ -323,8 +478,8 @@ public class GraffitiView extends View {
                     }
                     mCopyLocation.isRelocating = false;
                     if (mShape == Shape.HAND_WRITE) { // 手写
-                        mCurrPath = new Path();
-                        mCurrPath.moveTo(toX(mTouchDownX), toY(mTouchDownY));
+                        mCurrPath = GraffitiPath.toStroke(mPen, mShape, mPaintSize, mColor.copy(), null, mRecordPressure);
+                        mCurrPath.addPoint(toX(mTouchDownX), toY(mTouchDownY), event.getEventTime(), event.getPressure());
                         mCanvasPath.reset();
                         mCanvasPath.moveTo(toX4C(mTouchDownX), toY4C(mTouchDownY));
 
@@ -333,11 +488,17 @@ public class GraffitiView extends View {
                     }
                     mIsPainting = true;
                 }
+                mSegmentStartX = mTouchDownX;
+                mSegmentStartY = mTouchDownY;
+                mTouchBatchRect.set(mTouchDownX, mTouchDownY, mTouchDownX, mTouchDownY);
+                computeDirtyRect(mLastDirtyRect);
+                markContentChanged();
                 invalidate();
                 return true;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
                 mTouchMode = 0;
+                markContentChanged();
                 mLastTouchX = mTouchX;
                 mLastTouchY = mTouchY;
                 mTouchX = event.getX();
@@ -355,6 +516,11 @@ public class GraffitiView extends View {
                 } else {
                     if (mIsPainting) {
 
+                        if (mPen == Pen.ERASER) {
+                            // 子线程还没有解码完自定义的橡皮擦底图时在这里等待，笔画只按底图提交。
+                            // 否则笔画先按原图提交，加载后重绘或撤销时又按底图绘制，没有触摸过的像素也会改变
+                            loadEraserNow();
+                        }
                         if (mPen == Pen.COPY) {
                             mCopyLocation.updateLocation(mCopyLocation.mCopyStartX + toX4C(mTouchX) - mCopyLocation.mTouchStartX,
                                     mCopyLocation.mCopyStartY + toY4C(mTouchY) - mCopyLocation.mTouchStartY);
@@ -364,19 +530,30 @@ public class GraffitiView extends View {
 
                         // 把操作记录到加入的堆栈中
                         if (mShape == Shape.HAND_WRITE) { // 手写
-                            mCurrPath.quadTo(
-                                    toX(mLastTouchX),
-                                    toY(mLastTouchY),
-                                    toX((mTouchX + mLastTouchX) / 2),
-                                    toY((mTouchY + mLastTouchY) / 2));
-                            path = GraffitiPath.toPath(mPen, mShape, mPaintSize, mColor.copy(), mCurrPath, mPen == Pen.COPY ? new Matrix(mShaderMatrix) : null);
+                            mCurrPath.addPoint(toX(mTouchX), toY(mTouchY), event.getEventTime(), event.getPressure());
+                            mCurrPath.mMatrix = mPen == Pen.COPY ? new Matrix(mShaderMatrix) : null;
+                            if (mSimplifyTolerance > 0) { // 提交前简化，减少撤销时重绘和保存的开销
+                                int count = mCurrPath.getPointCount();
+                                int removed = mCurrPath.simplify(mSimplifyTolerance);
+                                if (mOnStrokeSimplifiedListener != null) {
+                                    mOnStrokeSimplifiedListener.onStrokeSimplified(mCurrPath, count, removed);
+                                }
+                            }
+                            path = mCurrPath;
+                            mCurrPath = null;
                         } else {  // 画图形
                             path = GraffitiPath.toShape(mPen, mShape, mPaintSize, mColor.copy(),
                                     toX(mTouchDownX), toY(mTouchDownY), toX(mTouchX), toY(mTouchY),
                                     mPen == Pen.COPY ? new Matrix(mShaderMatrix) : null);
                         }
+                        if (mMetrics != null && path.getPointCount() > 0) {
+                            mMetrics.getStrokePoints().record(path.getPointCount());
+                        }
+                        mCurrentLayer.mPaths.add(path);
                         mPathStack.add(path);
-                        draw(mBitmapCanvas, path, false); // 保存到图片中
+                        mRedoStack.clear();
+                        mRedoLayers.clear();
+                        commit(path, mCurrentLayer); // 保存到图片中
                         mIsPainting = false;
                     }
                 }
@@ -385,10 +562,11 @@ public class GraffitiView extends View {
                 return true;
             case MotionEvent.ACTION_MOVE:
                 if (mTouchMode < 2) { // 单点滑动
-                    mLastTouchX = mTouchX;
-                    mLastTouchY = mTouchY;
-                    mTouchX = event.getX();
-                    mTouchY = event.getY();
+                    int count = readTouchPoints(event);
+                    mLastTouchX = mTouchPoints[count * 2 - 4];
+                    mLastTouchY = mTouchPoints[count * 2 - 3];
+                    mTouchX = mTouchPoints[count * 2 - 2];
+                    mTouchY = mTouchPoints[count * 2 - 1];
 
                     if (mCopyLocation.isRelocating) { // 正在定位location
                         mCopyLocation.updateLocation(toX4C(mTouchX), toY4C(mTouchY));
@@ -397,17 +575,24 @@ public class GraffitiView extends View {
                             mCopyLocation.updateLocation(mCopyLocation.mCopyStartX + toX4C(mTouchX) - mCopyLocation.mTouchStartX,
                                     mCopyLocation.mCopyStartY + toY4C(mTouchY) - mCopyLocation.mTouchStartY);
                         }
-                        if (mShape == Shape.HAND_WRITE) { // 手写
-                            mCurrPath.quadTo(
-                                    toX(mLastTouchX),
-                                    toY(mLastTouchY),
-                                    toX((mTouchX + mLastTouchX) / 2),
-                                    toY((mTouchY + mLastTouchY) / 2));
-                            mCanvasPath.quadTo(
-                                    toX4C(mLastTouchX),
-                                    toY4C(mLastTouchY),
-                                    toX4C((mTouchX + mLastTouchX) / 2),
-                                    toY4C((mTouchY + mLastTouchY) / 2));
+                        if (mShape == Shape.HAND_WRITE) { // 手写，每个采样点都连接到路径中
+                            mapTouchPoints(count);
+                            // 画布坐标 = 图片坐标 + 图片在画布中的位置
+                            float left = (mCentreTranX + mTransX) / (mPrivateScale * mScale);
+                            float top = (mCentreTranY + mTransY) / (mPrivateScale * mScale);
+                            int historySize = event.getHistorySize();
+                            for (int i = 2; i < count * 2; i += 2) {
+                                float lastX = mImagePoints[i - 2], lastY = mImagePoints[i - 1];
+                                float midX = (mImagePoints[i] + lastX) / 2, midY = (mImagePoints[i + 1] + lastY) / 2;
+                                mCanvasPath.quadTo(lastX + left, lastY + top, midX + left, midY + top);
+                                int h = i / 2 - 1; // 历史采样点的序号，等于historySize时为当前触摸点
+                                if (h < historySize) {
+                                    mCurrPath.addPoint(mImagePoints[i], mImagePoints[i + 1],
+                                            event.getHistoricalEventTime(h), event.getHistoricalPressure(h));
+                                } else {
+                                    mCurrPath.addPoint(mImagePoints[i], mImagePoints[i + 1], event.getEventTime(), event.getPressure());
+                                }
+                            }
                         } else { // 画图形
 
                         }
@@ -416,23 +601,129 @@ public class GraffitiView extends View {
 
                 }
 
-                invalidate();
+                invalidateDirtyRect();
+                // 下一个手写片段从本次quadTo的终点开始
+                mSegmentStartX = (mTouchX + mLastTouchX) / 2;
+                mSegmentStartY = (mTouchY + mLastTouchY) / 2;
                 return true;
             case MotionEvent.ACTION_POINTER_UP:
                 mTouchMode -= 1;
 
-                invalidate();
+                invalidateDirtyRect();
                 return true;
             case MotionEvent.ACTION_POINTER_DOWN:
                 mTouchMode += 1;
 
-                invalidate();
+                invalidateDirtyRect();
                 return true;
         }
         return super.onTouchEvent(event);
     }
 
 
+    /**
+     * 把上一个触摸点和本次移动事件的所有采样点读入mTouchPoints，同时计算mTouchBatchRect
+     *
+     * @return 采样点的个数，至少为2
+     */
+    private int readTouchPoints(MotionEvent event) {
+        int historySize = event.getHistorySize();
+        int count = historySize + 2;
+        if (mTouchPoints.length < count * 2) { // 只在采样点比以往都多时扩容
+            mTouchPoints = new float[count * 4];
+            mImagePoints = new float[count * 4];
+        }
+        float[] points = mTouchPoints;
+        points[0] = mTouchX;
+        points[1] = mTouchY;
+        for (int h = 0; h < historySize; h++) {
+            points[h * 2 + 2] = event.getHistoricalX(h);
+            points[h * 2 + 3] = event.getHistoricalY(h);
+        }
+        points[count * 2 - 2] = event.getX();
+        points[count * 2 - 1] = event.getY();
+
+        mTouchBatchRect.set(points[0], points[1], points[0], points[1]);
+        for (int i = 2; i < count * 2; i += 2) {
+            mTouchBatchRect.union(points[i], points[i + 1]);
+        }
+        return count;
+    }
+
+    /**
+     * 把mTouchPoints中的前count个点一次性变换为图片坐标，保存到mImagePoints
+     */
+    private void mapTouchPoints(int count) {
+        float scale = mPrivateScale * mScale;
+        float transX = mCentreTranX + mTransX, transY = mCentreTranY + mTransY;
+        if (scale != mTouchMatrixScale || transX != mTouchMatrixTransX || transY != mTouchMatrixTransY) {
+            // 与toX()、toY()相同的变换
+            mTouchMatrix.setTranslate(-transX, -transY);
+            mTouchMatrix.postScale(1 / scale, 1 / scale);
+            mTouchMatrixScale = scale;
+            mTouchMatrixTransX = transX;
+            mTouchMatrixTransY = transY;
+        }
+        mTouchMatrix.mapPoints(mImagePoints, 0, mTouchPoints, 0, count);
+    }
+
+    /**
+     * 只刷新最新笔画片段、仿制定位器和放大器所在的区域，同时刷新上一次的区域以擦除旧的内容
+     */
+    private void invalidateDirtyRect() {
+        computeDirtyRect(mDirtyRect);
+        mInvalidRect.set(mDirtyRect);
+        mInvalidRect.union(mLastDirtyRect);
+        mLastDirtyRect.set(mDirtyRect);
+        if (mInvalidRect.isEmpty()) {
+            return;
+        }
+        invalidate((int) Math.floor(mInvalidRect.left), (int) Math.floor(mInvalidRect.top),
+                (int) Math.ceil(mInvalidRect.right), (int) Math.ceil(mInvalidRect.bottom));
+    }
+
+    /**
+     * 计算当前触摸状态下需要重绘的区域（view坐标）
+     */
+    private void computeDirtyRect(RectF rect) {
+        rect.setEmpty();
+        float scale = mPrivateScale * mScale;
+        if (mIsPainting) {
+            float half = mPaintSize * scale / 2 + DIRTY_PADDING;
+            if (mShape == Shape.HAND_WRITE) { // 最新的quadTo片段在起点、控制点、终点的包围盒内
+                // 本次事件的历史采样点产生的片段
+                rect.union(mTouchBatchRect.left - half, mTouchBatchRect.top - half,
+                        mTouchBatchRect.right + half, mTouchBatchRect.bottom + half);
+                unionDirtyRect(rect, mSegmentStartX, mSegmentStartY, half);
+                unionDirtyRect(rect, mLastTouchX, mLastTouchY, half);
+                unionDirtyRect(rect, mTouchX + VALUE, mTouchY + VALUE, half);
+            } else if (mShape == Shape.FILL_CIRCLE || mShape == Shape.HOLLOW_CIRCLE) {
+                float radius = (float) Math.sqrt((mTouchX - mTouchDownX) * (mTouchX - mTouchDownX)
+                        + (mTouchY - mTouchDownY) * (mTouchY - mTouchDownY)) + VALUE;
+                unionDirtyRect(rect, mTouchDownX, mTouchDownY, radius + half);
+            } else {
+                if (mShape == Shape.ARROW) { // 箭头的三角形会超出线宽，见DrawUtil.drawArrow
+                    half = mPaintSize * scale * 1.2f + DIRTY_PADDING;
+                }
+                unionDirtyRect(rect, mTouchDownX, mTouchDownY, half);
+                unionDirtyRect(rect, mTouchX + VALUE, mTouchY + VALUE, half);
+            }
+        }
+        if (mPen == Pen.COPY) { // 定位器的外圈半径为 mPaintSize/2+mPaintSize/8，再加上边框宽度mPaintSize/8
+            unionDirtyRect(rect, mCopyLocation.mX * scale, mCopyLocation.mY * scale, mPaintSize * 3 / 4 * scale + DIRTY_PADDING);
+        }
+        if (mAmplifierScale > 0) {
+            float border = mAmplifierPaint.getStrokeWidth() / 2 + DIRTY_PADDING;
+            float top = mTouchY <= mAmplifierRadius * 2 ? getHeight() - mAmplifierRadius * 2 : 0;
+            rect.union(mAmplifierHorizonX - border, top - border,
+                    mAmplifierHorizonX + mAmplifierRadius * 2 + border, top + mAmplifierRadius * 2 + border);
+        }
+    }
+
+    private void unionDirtyRect(RectF rect, float x, float y, float radius) {
+        rect.union(x - radius, y - radius, x + radius, y + radius);
+    }
+
     private void setBG() {// 不用resize preview
         int w = mBitmap.getWidth();
         int h = mBitmap.getHeight();
@@ -459,14 +750,21 @@ public class GraffitiView extends View {
         mAmplifierPath.addCircle(mAmplifierRadius, mAmplifierRadius, mAmplifierRadius, Path.Direction.CCW);
         mAmplifierHorizonX = (int) (Math.min(getWidth(), getHeight()) / 2 - mAmplifierRadius);
 
+        markContentChanged();
         invalidate();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (mBitmap.isRecycled() || mGraffitiBitmap.isRecycled()) {
+        if (mBitmap.isRecycled() || mSurface.isRecycled()) {
             return;
         }
+        GraffitiMetrics metrics = mMetrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+
+        if (mRegionDetail != null) {
+            updateRegionDetail();
+        }
 
         canvas.save();
         doDraw(canvas);
@@ -481,20 +779,112 @@ public class GraffitiView extends View {
                 canvas.translate(mAmplifierHorizonX, 0);
             }
             canvas.clipPath(mAmplifierPath);
-            canvas.drawColor(0xff000000);
-
-            canvas.save();
-            float scale = mAmplifierScale / mScale; // 除以mScale，无论当前图片缩放多少，都产生图片在居中状态下缩放mAmplifierScale倍的效果
-            canvas.scale(scale, scale);
-            canvas.translate(-mTouchX + mAmplifierRadius / scale, -mTouchY + mAmplifierRadius / scale);
-            doDraw(canvas);
-            canvas.restore();
+            updateAmplifier();
+            canvas.drawBitmap(mAmplifierBitmap, 0, 0, null);
 
             // 画放大器的边框
             DrawUtil.drawCircle(canvas, mAmplifierRadius, mAmplifierRadius, mAmplifierRadius, mAmplifierPaint);
             canvas.restore();
         }
 
+        if (metrics != null) {
+            metrics.getDrawTime().record(System.nanoTime() - start);
+            onMetricsFrame(canvas, metrics);
+        }
+    }
+
+    /**
+     * 每隔mMetricsInterval更新一次统计结果并回调，需要时绘制统计结果，不计入绘制的耗时
+     */
+    private void onMetricsFrame(Canvas canvas, GraffitiMetrics metrics) {
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastMetricsTime >= mMetricsInterval) {
+            mLastMetricsTime = now;
+            updateMetrics(metrics);
+            if (mShowMetricsHud) {
+                mHudLines = metrics.getSummary();
+            }
+            if (mOnMetricsListener != null) {
+                mOnMetricsListener.onMetrics(metrics);
+            }
+        }
+        if (mShowMetricsHud && mHudLines != null) {
+            if (mHudPaint == null) {
+                mHudPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                mHudPaint.setTextSize(Util.dp2px(getContext(), 11));
+            }
+            float lineHeight = mHudPaint.getFontSpacing();
+            float width = 0;
+            for (String line : mHudLines) {
+                width = Math.max(width, mHudPaint.measureText(line));
+            }
+            mHudPaint.setColor(0x99000000);
+            canvas.drawRect(0, 0, width + lineHeight, lineHeight * (mHudLines.length + 0.5f), mHudPaint);
+            mHudPaint.setColor(Color.WHITE);
+            for (int i = 0; i < mHudLines.length; i++) {
+                canvas.drawText(mHudLines[i], lineHeight / 2, lineHeight * (i + 1), mHudPaint);
+            }
+        }
+    }
+
+    /**
+     * 更新笔画个数和图片占用的内存
+     */
+    private void updateMetrics(GraffitiMetrics metrics) {
+        metrics.setPathCount(mPathStack.size());
+        long bytes = GraffitiMetrics.getByteCount(mBitmap) + GraffitiMetrics.getByteCount(mBitmapEraser)
+                + GraffitiMetrics.getByteCount(mAmplifierBitmap);
+        synchronized (mSurfaceLock) {
+            bytes += mSurface.getByteCount() + GraffitiMetrics.getByteCount(mCompositeBitmap);
+            if (mBackSurface != null) {
+                bytes += mBackSurface.getByteCount();
+            }
+        }
+        for (int i = 1; i < mLayers.size(); i++) {
+            bytes += mLayers.get(i).getByteCount();
+        }
+        metrics.setBitmapBytes(bytes);
+    }
+
+    /**
+     * 把手指下的区域绘制到放大镜的缓存中，绘制时画布只有放大镜大小，只会采样手指下的一小块区域
+     */
+    private void updateAmplifier() {
+        int size = (int) (mAmplifierRadius * 2);
+        if (mAmplifierBitmap == null || mAmplifierBitmap.getWidth() != size) {
+            if (mAmplifierBitmap != null) {
+                mAmplifierBitmap.recycle();
+            }
+            mAmplifierBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.RGB_565);
+            mAmplifierCanvas = new Canvas(mAmplifierBitmap);
+            mAmplifierVersion = -1;
+        }
+        float scale = mAmplifierScale / mScale; // 除以mScale，无论当前图片缩放多少，都产生图片在居中状态下缩放mAmplifierScale倍的效果
+        int version = mContentVersion.get();
+        if (version == mAmplifierVersion && mTouchX == mAmplifierTouchX && mTouchY == mAmplifierTouchY
+                && scale == mAmplifierCachedScale && mTransX == mAmplifierTransX && mTransY == mAmplifierTransY) {
+            return;
+        }
+        mAmplifierVersion = version;
+        mAmplifierTouchX = mTouchX;
+        mAmplifierTouchY = mTouchY;
+        mAmplifierCachedScale = scale;
+        mAmplifierTransX = mTransX;
+        mAmplifierTransY = mTransY;
+
+        mAmplifierCanvas.drawColor(0xff000000);
+        mAmplifierCanvas.save();
+        mAmplifierCanvas.scale(scale, scale);
+        mAmplifierCanvas.translate(-mTouchX + mAmplifierRadius / scale, -mTouchY + mAmplifierRadius / scale);
+        doDraw(mAmplifierCanvas);
+        mAmplifierCanvas.restore();
+    }
+
+    /**
+     * 涂鸦内容发生变化，放大镜需要重新绘制
+     */
+    private void markContentChanged() {
+        mContentVersion.incrementAndGet();
     }
 
     private void doDraw(Canvas canvas) {
@@ -512,7 +902,43 @@ public class GraffitiView extends View {
         }
 
         // 绘制涂鸦
-        canvas.drawBitmap(mGraffitiBitmap, (mCentreTranX + mTransX) / (mPrivateScale * mScale), (mCentreTranY + mTransY) / (mPrivateScale * mScale), null);
+        synchronized (mSurfaceLock) {
+            boolean composite = needComposite();
+            if (composite && mUseTiledSurface) {
+                canvas.save();
+                canvas.translate(left, top);
+                mBitmapRect.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+                drawBase(canvas, mBitmapRect);
+                drawLayers(canvas);
+                canvas.restore();
+            } else if (composite) {
+                updateComposite();
+                canvas.drawBitmap(mCompositeBitmap, left, top, null);
+            } else {
+                mSurface.drawTo(canvas, left, top);
+            }
+            if (mRegionDetail != null) {
+                canvas.save();
+                canvas.translate(left, top);
+                // 在原图细节上绘制已提交的笔画，笔画缓存在细节中，只有内容或者等待提交的笔画变化时才重新绘制
+                long version = ((long) mContentVersion.get() << 32) | (mPendingVersion & 0xffffffffL);
+                if (mRegionDetail.draw(canvas, version, mDetailPainter)) {
+                    if (composite) {
+                        drawLayers(canvas);
+                    }
+                }
+                canvas.restore();
+            }
+            if (!mPendingTasks.isEmpty()) { // 还没有提交完成的笔画，直接画在view的画布上，避免闪烁
+                canvas.save();
+                canvas.translate(left, top);
+                canvas.clipRect(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+                for (int i = 0; i < mPendingTasks.size(); i++) {
+                    mOverlayRenderer.draw(canvas, mPendingTasks.get(i).mPath);
+                }
+                canvas.restore();
+            }
+        }
 
         if (mIsPainting) {  //画在view的画布上
             Path path;
@@ -535,10 +961,10 @@ public class GraffitiView extends View {
             // 画触摸的路径
             mPaint.setStrokeWidth(mPaintSize);
             if (mShape == Shape.HAND_WRITE) { // 手写
-                draw(canvas, mPen, mPaint, path, null, true, mColor);
+                draw(canvas, mPen, mPaint, path, mColor);
             } else {  // 画图形
                 draw(canvas, mPen, mShape, mPaint,
-                        toX4C(mTouchDownX), toY4C(mTouchDownY), toX4C(mTouchX + span), toY4C(mTouchY + span), null, true, mColor);
+                        toX4C(mTouchDownX), toY4C(mTouchDownY), toX4C(mTouchX + span), toY4C(mTouchY + span), mColor);
             }
         }
 
@@ -547,338 +973,1568 @@ public class GraffitiView extends View {
         }
     }
 
-    private void draw(Canvas canvas, Pen pen, Paint paint, Path path, Matrix matrix, boolean is4Canvas, GraffitiColor color) {
-        resetPaint(pen, paint, is4Canvas, matrix, color);
-
-        paint.setStyle(Paint.Style.STROKE);
-        canvas.drawPath(path, paint);
-
-    }
-
-    private void draw(Canvas canvas, Pen pen, Shape shape, Paint paint, float sx, float sy, float dx, float dy, Matrix matrix, boolean is4Canvas, GraffitiColor color) {
-        resetPaint(pen, paint, is4Canvas, matrix, color);
-
-        paint.setStyle(Paint.Style.STROKE);
-
-        switch (shape) { // 绘制图形
-            case ARROW:
-                paint.setStyle(Paint.Style.FILL);
-                DrawUtil.drawArrow(canvas, sx, sy, dx, dy, paint);
-                break;
-            case LINE:
-                DrawUtil.drawLine(canvas, sx, sy, dx, dy, paint);
-                break;
-            case FILL_CIRCLE:
-                paint.setStyle(Paint.Style.FILL);
-            case HOLLOW_CIRCLE:
-                DrawUtil.drawCircle(canvas, sx, sy,
-                        (float) Math.sqrt((sx - dx) * (sx - dx) + (sy - dy) * (sy - dy)), paint);
-                break;
-            case FILL_RECT:
-                paint.setStyle(Paint.Style.FILL);
-            case HOLLOW_RECT:
-                DrawUtil.drawRect(canvas, sx, sy, dx, dy, paint);
-                break;
-            default:
-                throw new RuntimeException("unknown shape:" + shape);
+    /**
+     * 是否需要合成：有可见的其他图层，或者底层图层被隐藏、半透明
+     */
+    private boolean needComposite() {
+        if (!mBaseLayer.mVisible || mBaseLayer.mAlpha < 255) {
+            return true;
+        }
+        for (int i = 1; i < mLayers.size(); i++) {
+            GraffitiLayer layer = mLayers.get(i);
+            if (layer.mVisible && layer.mAlpha > 0 && !layer.mPaths.isEmpty()) {
+                return true;
+            }
         }
+        return false;
     }
 
-
-    private void draw(Canvas canvas, CopyOnWriteArrayList<GraffitiPath> pathStack, boolean is4Canvas) {
-        // 还原堆栈中的记录的操作
-        for (GraffitiPath path : pathStack) {
-            draw(canvas, path, is4Canvas);
+    /**
+     * 只重新合成失效的区域，调用时需持有mSurfaceLock
+     */
+    private void updateComposite() {
+        if (mCompositeBitmap == null) {
+            mCompositeBitmap = BitmapPool.getInstance().obtain(mBitmap.getWidth(), mBitmap.getHeight(), mSurface.getConfig());
+            mCompositeCanvas = new Canvas(mCompositeBitmap);
+            mCompositeDirty.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+        }
+        if (mCompositeDirty.isEmpty()) {
+            return;
         }
+        Canvas canvas = mCompositeCanvas;
+        canvas.save();
+        canvas.clipRect(mCompositeDirty);
+        drawBase(canvas, mCompositeDirty);
+        drawLayers(canvas);
+        canvas.restore();
+        mCompositeDirty.setEmpty();
     }
 
-    private void draw(Canvas canvas, GraffitiPath path, boolean is4Canvas) {
-        mPaint.setStrokeWidth(path.mStrokeWidth);
-        if (path.mShape == Shape.HAND_WRITE) { // 手写
-            draw(canvas, path.mPen, mPaint, path.mPath, path.mMatrix, is4Canvas, path.mColor);
-        } else { // 画图形
-            draw(canvas, path.mPen, path.mShape, mPaint,
-                    path.mSx, path.mSy, path.mDx, path.mDy, path.mMatrix, is4Canvas, path.mColor);
+    /**
+     * 按底层图层的可见性和透明度绘制表面，canvas的坐标系为图片坐标系
+     *
+     * @param bounds 需要绘制的区域，用于半透明时的离屏缓冲
+     */
+    private void drawBase(Canvas canvas, RectF bounds) {
+        if (mBaseLayer.mVisible && mBaseLayer.mAlpha == 255) {
+            mSurface.drawTo(canvas, 0, 0);
+        } else {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+            if (mBaseLayer.mVisible && mBaseLayer.mAlpha > 0) { // 表面为原图加上底层的笔画，按透明度叠加在原图上即为半透明的笔画
+                canvas.saveLayerAlpha(bounds, mBaseLayer.mAlpha, Canvas.ALL_SAVE_FLAG);
+                mSurface.drawTo(canvas, 0, 0);
+                canvas.restore();
+            }
         }
     }
 
-    private void resetPaint(Pen pen, Paint paint, boolean is4Canvas, Matrix matrix, GraffitiColor color) {
-        switch (pen) { // 设置画笔
-            case HAND:
-                paint.setShader(null);
-                if (is4Canvas) {
-                    color.initColor(paint, mShaderMatrix4C);
-                } else {
-                    color.initColor(paint, null);
-                }
-                break;
-            case COPY:
-                if (is4Canvas) { // 画在view的画布上
-                    paint.setShader(this.mBitmapShader4C);
-                } else { // 调整copy图片位置
-                    mBitmapShader.setLocalMatrix(matrix);
-                    paint.setShader(this.mBitmapShader);
-                }
-                break;
-            case ERASER:
-                if (is4Canvas) {
-                    paint.setShader(this.mBitmapShaderEraser4C);
-                } else {
-                    if (mBitmapShader == mBitmapShaderEraser) { // 图片的矩阵不需要任何偏移
-                        mBitmapShaderEraser.setLocalMatrix(null);
+    /**
+     * 按原图大小合成到bitmap中，其他图层不使用缓存，按条带重新绘制笔画，只需要一个条带大小的临时图片
+     * 使用分块的表面时保存用，调用时需持有mSurfaceLock
+     */
+    private void composeFull(Bitmap bitmap) {
+        int width = mBitmap.getWidth(), height = mBitmap.getHeight();
+        Canvas canvas = new Canvas(bitmap);
+        mBitmapRect.set(0, 0, width, height);
+        drawBase(canvas, mBitmapRect);
+        Bitmap band = BitmapPool.getInstance().obtain(width, Math.min(COMPOSE_BAND_HEIGHT, height), Bitmap.Config.ARGB_8888);
+        Canvas bandCanvas = new Canvas(band);
+        RectF rect = new RectF();
+        try {
+            for (int top = 0; top < height; top += band.getHeight()) {
+                rect.set(0, top, width, Math.min(height, top + band.getHeight()));
+                for (int i = 1; i < mLayers.size(); i++) {
+                    GraffitiLayer layer = mLayers.get(i);
+                    if (!layer.mVisible || layer.mAlpha == 0 || layer.mPaths.isEmpty()) {
+                        continue;
+                    }
+                    bandCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                    bandCanvas.save();
+                    bandCanvas.translate(0, -top);
+                    for (int j = 0; j < layer.mPaths.size(); j++) {
+                        GraffitiPath path = layer.mPaths.get(j);
+                        if (RectF.intersects(path.mBounds, rect)) {
+                            mLayerRenderer.draw(bandCanvas, path);
+                        }
                     }
-                    paint.setShader(this.mBitmapShaderEraser);
+                    bandCanvas.restore();
+                    mLayerPaint.setAlpha(layer.mAlpha);
+                    canvas.drawBitmap(band, 0, top, mLayerPaint);
                 }
-                break;
+            }
+        } finally {
+            BitmapPool.getInstance().put(band);
         }
     }
 
-
     /**
-     * 将屏幕触摸坐标x转换成在图片中的坐标 <br />
-     * 图片实际便宜量:mCentreTranX + mTransX
+     * 其他图层缓存的缩放比例：使用分块的表面时缓存最多LAYER_CACHE_MAX_PIXELS个像素，否则与图片一样大
      */
-    public final float toX(float touchX) {
-        return (touchX - mCentreTranX - mTransX) / (mPrivateScale * mScale);
+    private float getLayerCacheScale() {
+        double pixels = (double) mBitmap.getWidth() * mBitmap.getHeight();
+        if (!mUseTiledSurface || pixels <= LAYER_CACHE_MAX_PIXELS) {
+            return 1;
+        }
+        return (float) Math.sqrt(LAYER_CACHE_MAX_PIXELS / pixels);
     }
 
     /**
-     * 将屏幕触摸坐标y转换成在图片中的坐标
+     * 按顺序绘制底层图层以外的可见图层，canvas的坐标系为图片坐标系
      */
-    public final float toY(float touchY) {
-        return (touchY - mCentreTranY - mTransY) / (mPrivateScale * mScale);
+    private void drawLayers(Canvas canvas) {
+        for (int i = 1; i < mLayers.size(); i++) {
+            GraffitiLayer layer = mLayers.get(i);
+            if (!layer.mVisible || layer.mAlpha == 0) {
+                continue;
+            }
+            mLayerPaint.setAlpha(layer.mAlpha);
+            layer.draw(canvas, mLayerRenderer, mLayerPaint);
+        }
     }
 
     /**
-     * 坐标换算
-     * （公式由toX()中的公式推算出）
+     * 标记合成结果中需要重新合成的区域
      *
-     * @param touchX    触摸坐标
-     * @param graffitiX 在涂鸦图片中的坐标
-     * @return 偏移量
+     * @param rect 图片坐标，为null时重新合成整张图片
      */
-    public final float toTransX(float touchX, float graffitiX) {
-        return -graffitiX * (mPrivateScale * mScale) + touchX - mCentreTranX;
-    }
-
-    public final float toTransY(float touchY, float graffitiY) {
-        return -graffitiY * (mPrivateScale * mScale) + touchY - mCentreTranY;
+    private void invalidateComposite(RectF rect) {
+        synchronized (mSurfaceLock) {
+            if (rect == null) {
+                mCompositeDirty.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+            } else {
+                mCompositeDirty.union(rect);
+            }
+        }
     }
 
     /**
-     * 将屏幕触摸坐标x转换成在canvas中的坐标(相对于屏幕的坐标)
+     * 在原图细节上绘制底层已提交的笔画，跳过不在细节区域内的笔画，调用时需持有mSurfaceLock
      */
-    public final float toX4C(float x) {
-        return (x) / (mPrivateScale * mScale);
-    }
+    private final RegionDetail.StrokePainter mDetailPainter = new RegionDetail.StrokePainter() {
+        @Override
+        public void drawStrokes(Canvas canvas, RectF rect) {
+            if (!mBaseLayer.mVisible || mBaseLayer.mAlpha == 0) {
+                return;
+            }
+            if (mBaseLayer.mAlpha < 255) {
+                canvas.saveLayerAlpha(rect, mBaseLayer.mAlpha, Canvas.ALL_SAVE_FLAG);
+            }
+            for (int i = 0; i < mBaseLayer.mPaths.size(); i++) {
+                GraffitiPath path = mBaseLayer.mPaths.get(i);
+                if (path.mBounds != null && !RectF.intersects(path.mBounds, rect)) {
+                    continue;
+                }
+                if (!isPending(path)) {
+                    mOverlayRenderer.draw(canvas, path);
+                }
+            }
+            if (mBaseLayer.mAlpha < 255) {
+                canvas.restore();
+            }
+        }
+    };
 
     /**
-     * 将屏幕触摸坐标y转换成在canvas中的坐标
+     * 笔画是否还在等待提交，调用时需持有mSurfaceLock
      */
-    public final float toY4C(float y) {
-        return (y) / (mPrivateScale * mScale);
+    private boolean isPending(GraffitiPath path) {
+        for (int i = 0; i < mPendingTasks.size(); i++) {
+            if (mPendingTasks.get(i).mPath == path) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void initCanvas() {
-        if (mGraffitiBitmap != null) {
-            mGraffitiBitmap.recycle();
+    /**
+     * 计算可见区域，需要时解码原图细节
+     */
+    private void updateRegionDetail() {
+        mVisibleRect.set(Math.max(0, toX(0)), Math.max(0, toY(0)),
+                Math.min(mBitmap.getWidth(), toX(getWidth())), Math.min(mBitmap.getHeight(), toY(getHeight())));
+        if (!mVisibleRect.isEmpty()) {
+            mRegionDetail.update(mVisibleRect, mPrivateScale * mScale);
         }
-        mGraffitiBitmap = mBitmap.copy(Bitmap.Config.RGB_565, true);
-        mBitmapCanvas = new Canvas(mGraffitiBitmap);
     }
 
-    private void resetMatrix() {
-        if (mPen == Pen.COPY) { // 仿制，加上mCopyLocation记录的偏移
-            this.mShaderMatrix.set(null);
-            this.mShaderMatrix.postTranslate(mCopyLocation.mTouchStartX - mCopyLocation.mCopyStartX, mCopyLocation.mTouchStartY - mCopyLocation.mCopyStartY);
-            this.mBitmapShader.setLocalMatrix(this.mShaderMatrix);
+    private void draw(Canvas canvas, Pen pen, Paint paint, Path path, GraffitiColor color) {
+        resetPaint(pen, paint, color);
 
+        paint.setStyle(Paint.Style.STROKE);
+        canvas.drawPath(path, paint);
 
-            this.mShaderMatrix4C.set(null);
-            this.mShaderMatrix4C.postTranslate((mCentreTranX + mTransX) / (mPrivateScale * mScale) + mCopyLocation.mTouchStartX - mCopyLocation.mCopyStartX,
-                    (mCentreTranY + mTransY) / (mPrivateScale * mScale) + mCopyLocation.mTouchStartY - mCopyLocation.mCopyStartY);
-            this.mBitmapShader4C.setLocalMatrix(this.mShaderMatrix4C);
+    }
 
-        } else {
-            this.mShaderMatrix.set(null);
-            this.mBitmapShader.setLocalMatrix(this.mShaderMatrix);
+    private void draw(Canvas canvas, Pen pen, Shape shape, Paint paint, float sx, float sy, float dx, float dy, GraffitiColor color) {
+        resetPaint(pen, paint, color);
 
-            this.mShaderMatrix4C.set(null);
-            this.mShaderMatrix4C.postTranslate((mCentreTranX + mTransX) / (mPrivateScale * mScale), (mCentreTranY + mTransY) / (mPrivateScale * mScale));
-            this.mBitmapShader4C.setLocalMatrix(this.mShaderMatrix4C);
-        }
+        paint.setStyle(Paint.Style.STROKE);
+        GraffitiRenderer.drawShape(canvas, shape, paint, sx, sy, dx, dy, mGeometry);
+    }
 
-        // 如果使用了自定义的橡皮擦底图，则需要跳转矩阵
-        if (mPen == Pen.ERASER && mBitmapShader != mBitmapShaderEraser) {
-            mMatrixTemp.reset();
-            mBitmapShaderEraser.getLocalMatrix(mMatrixTemp);
-            mBitmapShader.getLocalMatrix(mMatrixTemp);
-            // 缩放橡皮擦底图，使之与涂鸦图片大小一样
-            if (mEraserImageIsResizeable) {
-                mMatrixTemp.preScale(mBitmap.getWidth() * 1f / mBitmapEraser.getWidth(), mBitmap.getHeight() * 1f / mBitmapEraser.getHeight());
-            }
-            mBitmapShaderEraser.setLocalMatrix(mMatrixTemp);
-
-            mMatrixTemp.reset();
-            mBitmapShaderEraser4C.getLocalMatrix(mMatrixTemp);
-            mBitmapShader4C.getLocalMatrix(mMatrixTemp);
-            // 缩放橡皮擦底图，使之与涂鸦图片大小一样
-            if (mEraserImageIsResizeable) {
-                mMatrixTemp.preScale(mBitmap.getWidth() * 1f / mBitmapEraser.getWidth(), mBitmap.getHeight() * 1f / mBitmapEraser.getHeight());
+    /**
+     * 把笔画绘制到涂鸦图片中，绘制前记录被覆盖的图块以便撤销
+     */
+    private void commit(GraffitiPath path, GraffitiLayer layer) {
+        if (path.mBounds == null) { // 只在第一次提交时计算
+            path.mBounds = new RectF();
+            computeBounds(path, path.mBounds);
+        }
+        if (layer != mBaseLayer) { // 其他图层的笔画直接在主线程中绘制到图层的缓存
+            GraffitiMetrics metrics = mMetrics;
+            long start = metrics == null ? 0 : System.nanoTime();
+            layer.drawPath(mLayerRenderer, path);
+            if (metrics != null) {
+                metrics.getCommitTime().record(System.nanoTime() - start);
             }
-            mBitmapShaderEraser4C.setLocalMatrix(mMatrixTemp);
+            invalidateComposite(path.mBounds);
+            markContentChanged();
+            invalidate();
+            return;
         }
+        postRenderTask(new RenderTask(RenderTask.COMMIT, path, null));
     }
 
     /**
-     * 调整图片位置
+     * 从原图开始重新绘制所有的笔画
      */
-    private void judgePosition() {
-        boolean changed = false;
-        if (mPrivateWidth * mScale > getWidth()) { // 图片偏移的位置不能超过屏幕边缘
-            if (mCentreTranX + mTransX > 0) {
-                mTransX = -mCentreTranX;
-                changed = true;
-            } else if (mCentreTranX + mTransX + mPrivateWidth * mScale < getWidth()) {
-                mTransX = getWidth() - mPrivateWidth * mScale - mCentreTranX;
-                changed = true;
-            }
-        } else { // 图片只能在屏幕可见范围内移动
-            if (mCentreTranX + mTransX + mBitmap.getWidth() * mPrivateScale * mScale > getWidth()) { // mScale<1是preview.width不用乘scale
-                mTransX = getWidth() - mBitmap.getWidth() * mPrivateScale * mScale - mCentreTranX;
-                changed = true;
-            } else if (mCentreTranX + mTransX < 0) {
-                mTransX = -mCentreTranX;
-                changed = true;
-            }
+    private void redrawSurface(GraffitiSurface surface, List<GraffitiPath> paths) {
+        surface.reset();
+        for (GraffitiPath path : paths) {
+            mPathPainter.mPath = path;
+            surface.draw(path.mBounds, mPathPainter);
         }
+    }
 
-        if (mPrivateHeight * mScale > getHeight()) { // 图片偏移的位置不能超过屏幕边缘
-            if (mCentreTranY + mTransY > 0) {
-                mTransY = -mCentreTranY;
-                changed = true;
-            } else if (mCentreTranY + mTransY + mPrivateHeight * mScale < getHeight()) {
-                mTransY = getHeight() - mPrivateHeight * mScale - mCentreTranY;
-                changed = true;
-            }
-        } else { // 图片只能在屏幕可见范围内移动
-            if (mCentreTranY + mTransY + mBitmap.getHeight() * mPrivateScale * mScale > getHeight()) {
-                mTransY = getHeight() - mBitmap.getHeight() * mPrivateScale * mScale - mCentreTranY;
-                changed = true;
-            } else if (mCentreTranY + mTransY < 0) {
-                mTransY = -mCentreTranY;
-                changed = true;
+    /**
+     * 只重新绘制rect区域：从原图恢复该区域，再重新绘制与之相交的笔画，绘制时裁剪到该区域
+     */
+    private void redrawRegion(GraffitiSurface surface, List<GraffitiPath> paths, RectF rect) {
+        surface.restoreRegion(rect);
+        mPathPainter.mClip = rect;
+        for (GraffitiPath path : paths) {
+            if (RectF.intersects(path.mBounds, rect)) {
+                mPathPainter.mPath = path;
+                surface.draw(rect, mPathPainter);
             }
         }
-        if (changed) {
-            resetMatrix();
-        }
+        mPathPainter.mClip = null;
     }
 
     /**
-     * 仿制的定位器
+     * 修改涂鸦表面，同步提交时直接在主线程中执行，否则交给渲染线程
      */
-    private class CopyLocation {
+    private void postRenderTask(RenderTask task) {
+        markContentChanged();
+        if (!mAsyncCommit) {
+            task.apply(mSurface, true);
+            invalidateComposite(task.getDirtyBounds());
+            invalidate();
+            return;
+        }
+        if (mRenderHandler == null) {
+            mRenderThread = new HandlerThread("GraffitiRender");
+            mRenderThread.start();
+            mRenderHandler = new Handler(mRenderThread.getLooper());
+        }
+        if (task.mType == RenderTask.COMMIT) {
+            synchronized (mSurfaceLock) {
+                mPendingTasks.add(task);
+                mPendingVersion++;
+            }
+        }
+        mRenderHandler.post(task);
+    }
 
-        private float mCopyStartX, mCopyStartY; // 仿制的坐标
-        private float mTouchStartX, mTouchStartY; // 开始触摸的坐标
+    /**
+     * 等待渲染线程完成所有已经提交的操作
+     */
+    private void flushRenderTasks() {
+        if (mRenderHandler == null) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 如果笔画还在等待提交，直接取消
+     *
+     * @return 是否已经取消，false表示笔画已经开始提交，需要撤销
+     */
+    private boolean cancelPendingCommit(GraffitiPath path) {
+        synchronized (mSurfaceLock) {
+            for (int i = mPendingTasks.size() - 1; i >= 0; i--) {
+                RenderTask task = mPendingTasks.get(i);
+                if (task.mPath == path) {
+                    if (task.mStarted) {
+                        return false;
+                    }
+                    task.mCancelled = true;
+                    mPendingTasks.remove(i);
+                    mPendingVersion++;
+                    markContentChanged();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mRegionDetail != null) {
+            mRegionDetail.release();
+            mRegionDetail = null;
+        }
+        if (mAmplifierBitmap != null) {
+            mAmplifierBitmap.recycle();
+            mAmplifierBitmap = null;
+        }
+        releaseComposite();
+        if (mRenderThread != null) {
+            flushRenderTasks();
+            mRenderThread.quit();
+            mRenderThread = null;
+            mRenderHandler = null;
+        }
+    }
+
+    /**
+     * 把合成结果和图层的缓存放回图片池，需要时再重新绘制
+     */
+    private void releaseComposite() {
+        if (mCompositeBitmap != null) {
+            BitmapPool.getInstance().put(mCompositeBitmap);
+            mCompositeBitmap = null;
+            mCompositeCanvas = null;
+        }
+        for (int i = 1; i < mLayers.size(); i++) {
+            mLayers.get(i).release();
+        }
+    }
+
+    /**
+     * 结束涂鸦时调用，把涂鸦表面、图层缓存和橡皮擦底图放回图片池，供下一次涂鸦复用
+     * 释放后不能再使用该view，重复调用无效；传入的原图由调用者负责，
+     * 按原图分辨率导出时原图可能还在被使用，需要通过{@link #release(Runnable)}在回调中放回图片池
+     */
+    public void release() {
+        release(null);
+    }
+
+    /**
+     * 同{@link #release()}，onBitmapFree在不再有后台任务读取传入的原图后在主线程中执行，
+     * 用于把原图放回图片池。取消的按原图分辨率导出中正在绘制的图块结束之前不会执行，没有导出时立即执行
+     *
+     * @param onBitmapFree 可以为null
+     */
+    public void release(Runnable onBitmapFree) {
+        if (mReleased) {
+            if (onBitmapFree != null) {
+                runWhenExportsFinished(onBitmapFree);
+            }
+            return;
+        }
+        mReleased = true;
+        cancelSave();
+        flushRenderTasks();
+        synchronized (mSurfaceLock) {
+            mPendingTasks.clear();
+            releaseComposite();
+            if (mSurface != null) { // 保留引用，释放后isRecycled()返回true，绘制时不再使用
+                mSurface.release();
+            }
+            if (mBackSurface != null) {
+                mBackSurface.release();
+                mBackSurface = null;
+            }
+        }
+        if (mBitmapEraser != null) {
+            final Bitmap eraser = mBitmapEraser;
+            mBitmapEraser = null;
+            // 按原图分辨率导出时，正在绘制的图块还在使用橡皮擦底图
+            runWhenExportsFinished(new Runnable() {
+                @Override
+                public void run() {
+                    BitmapPool.getInstance().put(eraser);
+                }
+            });
+        }
+        if (onBitmapFree != null) { // 正在绘制的图块还在读取原图
+            runWhenExportsFinished(onBitmapFree);
+        }
+    }
+
+    /**
+     * 所有按原图分辨率导出（包括已取消但还有图块在绘制的）结束后在主线程中执行，没有导出时立即执行
+     */
+    private void runWhenExportsFinished(final Runnable runnable) {
+        if (mExports.isEmpty()) {
+            runnable.run();
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(mExports.size());
+        Runnable onFinished = new Runnable() {
+            @Override
+            public void run() {
+                ThreadUtil.getInstance().runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (remaining.decrementAndGet() == 0) {
+                            runnable.run();
+                        }
+                    }
+                });
+            }
+        };
+        for (int i = 0; i < mExports.size(); i++) {
+            mExports.get(i).runWhenFinished(onFinished);
+        }
+    }
+
+    /**
+     * 修改涂鸦表面的操作
+     * 异步提交时，渲染线程先修改后台表面，再与前台表面交换，最后在新的后台表面上重复同样的修改，使两块表面保持一致
+     */
+    private class RenderTask implements Runnable {
+        static final int COMMIT = 1; // 提交笔画
+        static final int UNDO = 2; // 撤销
+        static final int CLEAR = 3; // 清屏
+
+        private final int mType;
+        private final GraffitiPath mPath; // 提交或撤销的笔画
+        private final List<GraffitiPath> mPaths; // 撤销后堆栈中剩余的笔画，图块记录被丢弃时用来重新绘制
+        private boolean mStarted, mCancelled; // 由mSurfaceLock保护
+        private boolean mRestored;
+
+        RenderTask(int type, GraffitiPath path, List<GraffitiPath> paths) {
+            mType = type;
+            mPath = path;
+            mPaths = paths;
+        }
+
+        /**
+         * @param first 是否第一次执行，只有第一次执行时修改撤销记录
+         */
+        void apply(GraffitiSurface surface, boolean first) {
+            GraffitiMetrics metrics = first ? mMetrics : null; // 只统计第一次执行，之后在后台表面上重复的修改不影响显示
+            long start = metrics == null ? 0 : System.nanoTime();
+            switch (mType) {
+                case COMMIT:
+                    if (first) {
+                        mTileHistory.push(surface, mPath.mBounds);
+                    }
+                    mPathPainter.mPath = mPath;
+                    surface.draw(mPath.mBounds, mPathPainter);
+                    break;
+                case UNDO:
+                    if (first) {
+                        mRestored = mTileHistory.pop(surface);
+                    } else if (mRestored) {
+                        mTileHistory.restoreLast(surface);
+                    }
+                    if (!mRestored) { // 图块记录已被丢弃，只重新绘制被撤销的笔画所在的区域
+                        redrawRegion(surface, mPaths, mPath.mBounds);
+                    }
+                    break;
+                case CLEAR:
+                    if (first) {
+                        mTileHistory.clear();
+                    }
+                    surface.reset();
+                    break;
+            }
+            if (metrics != null) {
+                if (mType == COMMIT) {
+                    metrics.getCommitTime().record(System.nanoTime() - start);
+                } else if (mType == UNDO) {
+                    metrics.getUndoTime().record(System.nanoTime() - start);
+                }
+            }
+        }
+
+        /**
+         * 表面被修改的区域，为null时表示整个表面
+         */
+        RectF getDirtyBounds() {
+            return mType == CLEAR ? null : mPath.mBounds;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mSurfaceLock) {
+                if (mCancelled) {
+                    return;
+                }
+                mStarted = true;
+            }
+            GraffitiSurface back = mBackSurface;
+            apply(back, true);
+            synchronized (mSurfaceLock) { // 交换的同时移除覆盖层
+                mBackSurface = mSurface;
+                mSurface = back;
+                mPendingTasks.remove(this);
+                mPendingVersion++;
+                invalidateComposite(getDirtyBounds());
+            }
+            if (mType != COMMIT) { // 提交前后显示的内容一样，不需要重新绘制放大镜
+                markContentChanged();
+            }
+            postInvalidate();
+            apply(mBackSurface, false);
+        }
+    }
+
+    /**
+     * 把笔画绘制到涂鸦表面上
+     */
+    private static class PathPainter implements GraffitiSurface.Painter {
+        private final GraffitiRenderer mRenderer;
+        private GraffitiPath mPath;
+        private RectF mClip; // 不为null时只绘制该区域
+
+        PathPainter(GraffitiRenderer renderer) {
+            mRenderer = renderer;
+        }
+
+        @Override
+        public void paint(Canvas canvas) {
+            if (mClip == null) {
+                mRenderer.draw(canvas, mPath);
+                return;
+            }
+            canvas.save();
+            canvas.clipRect(mClip);
+            mRenderer.draw(canvas, mPath);
+            canvas.restore();
+        }
+    }
+
+    /**
+     * 计算笔画在图片中覆盖的区域（包含笔画宽度）
+     */
+    private void computeBounds(GraffitiPath path, RectF rect) {
+        float half = path.mStrokeWidth / 2 + DIRTY_PADDING;
+        if (path.mShape == Shape.HAND_WRITE) {
+            path.computeBounds(rect); // 采样点即控制点，曲线一定在其包围盒内
+            rect.inset(-half, -half);
+        } else if (path.mShape == Shape.FILL_CIRCLE || path.mShape == Shape.HOLLOW_CIRCLE) {
+            float radius = (float) Math.sqrt((path.mSx - path.mDx) * (path.mSx - path.mDx)
+                    + (path.mSy - path.mDy) * (path.mSy - path.mDy)) + half;
+            rect.set(path.mSx - radius, path.mSy - radius, path.mSx + radius, path.mSy + radius);
+        } else {
+            if (path.mShape == Shape.ARROW) { // 箭头的三角形会超出线宽，见DrawUtil.drawArrow
+                half = path.mStrokeWidth * 1.2f + DIRTY_PADDING;
+            }
+            rect.set(Math.min(path.mSx, path.mDx) - half, Math.min(path.mSy, path.mDy) - half,
+                    Math.max(path.mSx, path.mDx) + half, Math.max(path.mSy, path.mDy) + half);
+        }
+    }
+
+    /**
+     * 设置画在view的画布上的画笔，提交到图片中的笔画由GraffitiRenderer绘制
+     */
+    private void resetPaint(Pen pen, Paint paint, GraffitiColor color) {
+        switch (pen) { // 设置画笔
+            case HAND:
+                paint.setShader(null);
+                color.initColor(paint, mShaderMatrix4C);
+                break;
+            case COPY:
+                paint.setShader(this.mBitmapShader4C);
+                break;
+            case ERASER:
+                paint.setShader(this.mBitmapShaderEraser4C);
+                break;
+        }
+    }
+
+
+    /**
+     * 将屏幕触摸坐标x转换成在图片中的坐标 <br />
+     * 图片实际便宜量:mCentreTranX + mTransX
+     */
+    public final float toX(float touchX) {
+        return GraffitiMath.toImage(touchX, mCentreTranX, mTransX, mPrivateScale * mScale);
+    }
+
+    /**
+     * 将屏幕触摸坐标y转换成在图片中的坐标
+     */
+    public final float toY(float touchY) {
+        return GraffitiMath.toImage(touchY, mCentreTranY, mTransY, mPrivateScale * mScale);
+    }
+
+    /**
+     * 坐标换算
+     * （公式由toX()中的公式推算出）
+     *
+     * @param touchX    触摸坐标
+     * @param graffitiX 在涂鸦图片中的坐标
+     * @return 偏移量
+     */
+    public final float toTransX(float touchX, float graffitiX) {
+        return GraffitiMath.toTrans(touchX, graffitiX, mCentreTranX, mPrivateScale * mScale);
+    }
+
+    public final float toTransY(float touchY, float graffitiY) {
+        return GraffitiMath.toTrans(touchY, graffitiY, mCentreTranY, mPrivateScale * mScale);
+    }
+
+    /**
+     * 将屏幕触摸坐标x转换成在canvas中的坐标(相对于屏幕的坐标)
+     */
+    public final float toX4C(float x) {
+        return GraffitiMath.toCanvas(x, mPrivateScale * mScale);
+    }
+
+    /**
+     * 将屏幕触摸坐标y转换成在canvas中的坐标
+     */
+    public final float toY4C(float y) {
+        return GraffitiMath.toCanvas(y, mPrivateScale * mScale);
+    }
+
+    private void initCanvas() {
+        if (mReleased) { // 表面已经放回图片池，可能被其他地方使用
+            return;
+        }
+        flushRenderTasks();
+        if (mSurface == null) {
+            mSurface = createSurface();
+        } else {
+            mSurface.reset();
+        }
+        if (mAsyncCommit) {
+            if (mBackSurface == null) {
+                mBackSurface = createSurface();
+            } else {
+                mBackSurface.reset();
+            }
+        }
+        invalidateComposite(null);
+    }
+
+    /**
+     * 分块的表面常驻内存的图块上限：所有表面共用最大内存的1/8，异步提交时前后台两块表面平分
+     */
+    private int getSurfaceMaxBytes() {
+        long bytes = Runtime.getRuntime().maxMemory() / 8;
+        if (mAsyncCommit) {
+            bytes /= 2;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private GraffitiSurface createSurface() {
+        if (mUseTiledSurface) {
+            return new TiledSurface(mBitmap, getSurfaceMaxBytes());
+        } else {
+            return new BitmapSurface(mBitmap);
+        }
+    }
+
+    private void resetMatrix() {
+        if (mPen == Pen.COPY) { // 仿制，加上mCopyLocation记录的偏移
+            this.mShaderMatrix.set(null);
+            this.mShaderMatrix.postTranslate(mCopyLocation.mTouchStartX - mCopyLocation.mCopyStartX, mCopyLocation.mTouchStartY - mCopyLocation.mCopyStartY);
+
+            this.mShaderMatrix4C.set(null);
+            this.mShaderMatrix4C.postTranslate((mCentreTranX + mTransX) / (mPrivateScale * mScale) + mCopyLocation.mTouchStartX - mCopyLocation.mCopyStartX,
+                    (mCentreTranY + mTransY) / (mPrivateScale * mScale) + mCopyLocation.mTouchStartY - mCopyLocation.mCopyStartY);
+            this.mBitmapShader4C.setLocalMatrix(this.mShaderMatrix4C);
+
+        } else {
+            this.mShaderMatrix.set(null);
+
+            this.mShaderMatrix4C.set(null);
+            this.mShaderMatrix4C.postTranslate((mCentreTranX + mTransX) / (mPrivateScale * mScale), (mCentreTranY + mTransY) / (mPrivateScale * mScale));
+            this.mBitmapShader4C.setLocalMatrix(this.mShaderMatrix4C);
+        }
+
+        // 如果使用了自定义的橡皮擦底图，则需要跳转矩阵，底图解码时已经调整过大小，不需要再缩放
+        if (mPen == Pen.ERASER && mBitmapEraser != null) {
+            mBitmapShaderEraser4C.setLocalMatrix(mShaderMatrix4C);
+        }
+    }
+
+    /**
+     * 在子线程中解码自定义的橡皮擦底图，可以调整大小时直接重新采样成涂鸦图片的大小
+     * 加载完成前可以继续涂鸦，正在绘制的笔画先按原图显示，提交时还没有加载完成则在主线程中加载，见{@link #loadEraserNow()}
+     */
+    private void loadEraser() {
+        if (mEraserPath == null || mBitmapEraser != null || mEraserLoading) {
+            return;
+        }
+        mEraserLoading = true;
+        final String path = mEraserPath;
+        final int width = mBitmap.getWidth(), height = mBitmap.getHeight();
+        final boolean resizeable = mEraserImageIsResizeable;
+        ThreadUtil.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap eraser = BitmapDecodeUtil.decodeEraser(path, width, height, resizeable);
+                ThreadUtil.getInstance().runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mEraserLoading = false;
+                        if (mReleased || mBitmapEraser != null) { // 已经通过loadEraserNow()加载
+                            BitmapPool.getInstance().put(eraser);
+                            return;
+                        }
+                        if (eraser == null) { // 解码失败，继续使用原图
+                            mEraserPath = null;
+                            return;
+                        }
+                        setEraserBitmap(eraser);
+                        resetMatrix();
+                        markContentChanged();
+                        invalidate();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 在当前线程中加载橡皮擦底图，已经加载时直接返回。提交橡皮擦笔画前和回放时使用，提交的笔画都按底图绘制
+     */
+    void loadEraserNow() {
+        if (mEraserPath == null || mBitmapEraser != null) {
+            return;
+        }
+        Bitmap eraser = BitmapDecodeUtil.decodeEraser(mEraserPath, mBitmap.getWidth(), mBitmap.getHeight(), mEraserImageIsResizeable);
+        if (eraser == null) {
+            mEraserPath = null;
+            return;
+        }
+        setEraserBitmap(eraser);
+        resetMatrix();
+        markContentChanged();
+        invalidate();
+    }
+
+    private void setEraserBitmap(Bitmap eraser) {
+        mBitmapEraser = eraser;
+        mBitmapShaderEraser4C = new BitmapShader(eraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+        mCommitRenderer.setEraser(eraser);
+        mOverlayRenderer.setEraser(eraser);
+        mLayerRenderer.setEraser(eraser);
+    }
+
+    /**
+     * 调整图片位置
+     */
+    private void judgePosition() {
+        boolean changed = false;
+        if (mPrivateWidth * mScale > getWidth()) { // 图片偏移的位置不能超过屏幕边缘
+            if (mCentreTranX + mTransX > 0) {
+                mTransX = -mCentreTranX;
+                changed = true;
+            } else if (mCentreTranX + mTransX + mPrivateWidth * mScale < getWidth()) {
+                mTransX = getWidth() - mPrivateWidth * mScale - mCentreTranX;
+                changed = true;
+            }
+        } else { // 图片只能在屏幕可见范围内移动
+            if (mCentreTranX + mTransX + mBitmap.getWidth() * mPrivateScale * mScale > getWidth()) { // mScale<1是preview.width不用乘scale
+                mTransX = getWidth() - mBitmap.getWidth() * mPrivateScale * mScale - mCentreTranX;
+                changed = true;
+            } else if (mCentreTranX + mTransX < 0) {
+                mTransX = -mCentreTranX;
+                changed = true;
+            }
+        }
+
+        if (mPrivateHeight * mScale > getHeight()) { // 图片偏移的位置不能超过屏幕边缘
+            if (mCentreTranY + mTransY > 0) {
+                mTransY = -mCentreTranY;
+                changed = true;
+            } else if (mCentreTranY + mTransY + mPrivateHeight * mScale < getHeight()) {
+                mTransY = getHeight() - mPrivateHeight * mScale - mCentreTranY;
+                changed = true;
+            }
+        } else { // 图片只能在屏幕可见范围内移动
+            if (mCentreTranY + mTransY + mBitmap.getHeight() * mPrivateScale * mScale > getHeight()) {
+                mTransY = getHeight() - mBitmap.getHeight() * mPrivateScale * mScale - mCentreTranY;
+                changed = true;
+            } else if (mCentreTranY + mTransY < 0) {
+                mTransY = -mCentreTranY;
+                changed = true;
+            }
+        }
+        if (changed) {
+            resetMatrix();
+        }
+    }
+
+    /**
+     * 仿制的定位器
+     */
+    private class CopyLocation {
+
+        private float mCopyStartX, mCopyStartY; // 仿制的坐标
+        private float mTouchStartX, mTouchStartY; // 开始触摸的坐标
         private float mX, mY; // 当前位置
 
-        private Paint mPaint;
+        private Paint mPaint;
+
+        private boolean isRelocating = true; // 正在定位中
+        private boolean isCopying = false; // 正在仿制绘图中
+
+        public CopyLocation(float x, float y) {
+            mX = x;
+            mY = y;
+            mTouchStartX = x;
+            mTouchStartY = y;
+            mPaint = new Paint();
+            mPaint.setAntiAlias(true);
+            mPaint.setStrokeWidth(mPaintSize);
+            mPaint.setStyle(Paint.Style.FILL);
+            mPaint.setStrokeJoin(Paint.Join.ROUND);
+        }
+
+
+        public void updateLocation(float x, float y) {
+            mX = x;
+            mY = y;
+        }
+
+        public void setStartPosition(float x, float y) {
+            mCopyStartX = mX;
+            mCopyStartY = mY;
+            mTouchStartX = x;
+            mTouchStartY = y;
+        }
+
+        public void drawItSelf(Canvas canvas) {
+            mPaint.setStrokeWidth(mPaintSize / 4);
+            mPaint.setStyle(Paint.Style.STROKE);
+            mPaint.setColor(0xaa666666); // 灰色
+            DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2 + mPaintSize / 8, mPaint);
+
+            mPaint.setStrokeWidth(mPaintSize / 16);
+            mPaint.setStyle(Paint.Style.STROKE);
+            mPaint.setColor(0xaaffffff); // 白色
+            DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2 + mPaintSize / 32, mPaint);
+
+            mPaint.setStyle(Paint.Style.FILL);
+            if (!isCopying) {
+                mPaint.setColor(0x44ff0000); // 红色
+                DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2, mPaint);
+            } else {
+                mPaint.setColor(0x44000088); // 蓝色
+                DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2, mPaint);
+            }
+        }
+
+        /**
+         * 判断是否点中
+         */
+        public boolean isInIt(float x, float y) {
+            if ((mX - x) * (mX - x) + (mY - y) * (mY - y) <= mPaintSize * mPaintSize) {
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    // ===================== api ==============
+
+    /**
+     * 保存
+     */
+    public void save() {
+        flushRenderTasks();
+//            initCanvas();
+//            draw(mBitmapCanvas, mPathStackBackup, false);
+//            draw(mBitmapCanvas, mPathStack, false);
+        mGraffitiListener.onSaved(getResultBitmap(false), mBitmapEraser);
+    }
+
+    /**
+     * 在子线程中把涂鸦后的图片保存到文件，保存过程中可以继续涂鸦
+     * 同一时间只有一个保存任务，重复调用会取消之前的保存
+     *
+     * @param file     保存的路径
+     * @param listener 保存进度和结果的回调，在主线程中执行
+     */
+    public void save(File file, SaveListener listener) {
+        save(Collections.singletonList(new SaveSpec(file, Bitmap.CompressFormat.JPEG, 95)), listener);
+    }
+
+    /**
+     * 在子线程中把涂鸦后的图片保存为多个输出（如原图、预览图和缩略图），图片只合成一次，
+     * 较小的输出由已经合成的图片逐级缩小得到，各个输出同时编码
+     *
+     * @param specs    所有输出，每个输出分别回调onSaveCompleted()或onSaveFailed()
+     * @param listener 保存进度和结果的回调，在主线程中执行，进度为所有输出已经写入的总字节数
+     */
+    public void save(List<SaveSpec> specs, SaveListener listener) {
+        if (listener == null) {
+            throw new RuntimeException("SaveListener is null!!!");
+        }
+        cancelSave();
+        flushRenderTasks();
+        mSaver = new BitmapSaver(getResultBitmap(true), specs, listener);
+        ThreadUtil.getInstance().execute(mSaver);
+    }
+
+    /**
+     * 在子线程中按原图的分辨率重新绘制所有可见图层的笔画并保存，涂鸦图片是原图的采样图时使用
+     * 原图分块并行绘制，绘制时的工作内存与图块大小和CPU核数成正比，拼接结果占用 原图宽×高×2 字节，
+     * 超过最大堆内存的一半时不开始绘制，回调onSaveFailed()。
+     * 与{@link #save(File, SaveListener)}共用同一个保存任务，原图需要按exif旋转时不支持，回调onSaveFailed()
+     * 取消时不等待正在绘制的图块，这些图块可能还会读取涂鸦图片，但结果会被丢弃；橡皮擦底图在导出结束后才放回图片池，
+     * 涂鸦图片需要通过{@link #release(Runnable)}的回调在导出结束后再回收
+     *
+     * @param imagePath 原图的路径，涂鸦图片由它解码
+     * @param file      保存的路径
+     * @param listener  保存进度和结果的回调，在主线程中执行
+     */
+    public void saveFullResolution(String imagePath, File file, SaveListener listener) {
+        saveFullResolution(imagePath, Collections.singletonList(new SaveSpec(file, Bitmap.CompressFormat.JPEG, 95)),
+                listener);
+    }
+
+    /**
+     * 按原图的分辨率绘制后保存为多个输出，见{@link #save(List, SaveListener)}
+     */
+    public void saveFullResolution(String imagePath, List<SaveSpec> specs, SaveListener listener) {
+        if (listener == null) {
+            throw new RuntimeException("SaveListener is null!!!");
+        }
+        cancelSave();
+        flushRenderTasks();
+        TiledExporter exporter = new TiledExporter(imagePath, mBitmap, mBitmapEraser);
+        for (int i = 0; i < mLayers.size(); i++) { // 复制笔画，导出时可以继续涂鸦
+            GraffitiLayer layer = mLayers.get(i);
+            exporter.addLayer(new ArrayList<GraffitiPath>(layer.mPaths), layer.mVisible ? layer.mAlpha : 0);
+        }
+        final BitmapSaver saver = new BitmapSaver(exporter, specs, listener);
+        mExports.add(saver);
+        saver.runWhenFinished(new Runnable() {
+            @Override
+            public void run() {
+                ThreadUtil.getInstance().runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mExports.remove(saver);
+                    }
+                });
+            }
+        });
+        mSaver = saver;
+        ThreadUtil.getInstance().execute(mSaver);
+    }
+
+    /**
+     * 获取涂鸦后的图片，需要合成时为所有可见图层的合成结果
+     *
+     * @param copy 是否返回副本，副本由调用者负责回收
+     */
+    private Bitmap getResultBitmap(boolean copy) {
+        synchronized (mSurfaceLock) {
+            if (!needComposite()) {
+                return copy ? mSurface.copyBitmap() : mSurface.getBitmap();
+            }
+            if (mUseTiledSurface) { // 显示时不保留合成结果，按原图大小重新合成
+                Bitmap bitmap;
+                if (copy) {
+                    bitmap = BitmapPool.getInstance().obtain(mBitmap.getWidth(), mBitmap.getHeight(), mSurface.getConfig());
+                } else {
+                    if (mCompositeBitmap == null) {
+                        mCompositeBitmap = BitmapPool.getInstance().obtain(mBitmap.getWidth(), mBitmap.getHeight(), mSurface.getConfig());
+                        mCompositeCanvas = new Canvas(mCompositeBitmap);
+                    }
+                    bitmap = mCompositeBitmap;
+                }
+                composeFull(bitmap);
+                return bitmap;
+            }
+            updateComposite();
+            return copy ? mCompositeBitmap.copy(mCompositeBitmap.getConfig(), false) : mCompositeBitmap;
+        }
+    }
+
+    /**
+     * 取消正在进行的保存，取消后不再回调
+     */
+    public void cancelSave() {
+        if (mSaver != null) {
+            mSaver.cancel();
+            mSaver = null;
+        }
+    }
+
+    /**
+     * 清屏
+     */
+    public void clear() {
+        recordTrace(TouchTrace.CLEAR, 0);
+        mPathStack.clear();
+        mRedoStack.clear();
+        mRedoLayers.clear();
+//        mPathStackBackup.clear();
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).clear();
+        }
+        invalidateComposite(null);
+        clearSurface();
+        invalidate();
+    }
+
+    /**
+     * 清空涂鸦表面，还没有开始提交的笔画不再需要提交
+     */
+    private void clearSurface() {
+        synchronized (mSurfaceLock) {
+            for (int i = mPendingTasks.size() - 1; i >= 0; i--) {
+                if (!mPendingTasks.get(i).mStarted) {
+                    mPendingTasks.remove(i).mCancelled = true;
+                    mPendingVersion++;
+                }
+            }
+        }
+        postRenderTask(new RenderTask(RenderTask.CLEAR, null, null));
+    }
+
+    /**
+     * 撤销
+     */
+    public void undo() {
+        recordTrace(TouchTrace.UNDO, 0);
+        if (mPathStack.size() > 0) {
+            GraffitiPath path = mPathStack.remove(mPathStack.size() - 1);
+            GraffitiLayer layer = getLayerOf(path);
+            mRedoStack.add(path);
+            mRedoLayers.add(layer);
+            layer.mPaths.remove(path);
+            if (layer != mBaseLayer) { // 其他图层只重新绘制被撤销的笔画所在的区域
+                GraffitiMetrics metrics = mMetrics;
+                long start = metrics == null ? 0 : System.nanoTime();
+                layer.redrawRegion(mLayerRenderer, path.mBounds);
+                if (metrics != null) {
+                    metrics.getUndoTime().record(System.nanoTime() - start);
+                }
+                invalidateComposite(path.mBounds);
+                markContentChanged();
+            } else if (!cancelPendingCommit(path)) {
+                postRenderTask(new RenderTask(RenderTask.UNDO, path, new ArrayList<GraffitiPath>(layer.mPaths)));
+            }
+            invalidate();
+        }
+    }
+
+    /**
+     * 重做
+     */
+    public void redo() {
+        recordTrace(TouchTrace.REDO, 0);
+        if (mRedoStack.size() > 0) {
+            GraffitiPath path = mRedoStack.remove(mRedoStack.size() - 1);
+            GraffitiLayer layer = mRedoLayers.remove(mRedoLayers.size() - 1);
+            layer.mPaths.add(path);
+            mPathStack.add(path);
+            commit(path, layer);
+            invalidate();
+        }
+    }
+
+    /**
+     * 是否可以重做
+     */
+    public boolean isRedoable() {
+        return mRedoStack.size() != 0;
+    }
+
+    /**
+     * 设置是否使用分块的表面，图片很大时只为涂鸦过的区域分配内存
+     * 默认在图片像素数超过{@link #TILED_SURFACE_MIN_PIXELS}时使用
+     * 使用时其他图层的缓存按比例缩小，也不保留完整的合成结果，保存时才按原图大小合成
+     * 调用后{@link #setHardwareRendering(boolean)}不再改变该设置
+     *
+     * @param useTiledSurface
+     */
+    public void setUseTiledSurface(boolean useTiledSurface) {
+        mTiledSurfaceSet = true;
+        updateTiledSurface(useTiledSurface);
+    }
+
+    private void updateTiledSurface(boolean useTiledSurface) {
+        if (mUseTiledSurface == useTiledSurface) {
+            return;
+        }
+        flushRenderTasks();
+        mUseTiledSurface = useTiledSurface;
+        releaseComposite();
+        for (int i = 0; i < mLayers.size(); i++) {
+            mLayers.get(i).setCacheScale(getLayerCacheScale());
+        }
+        if (mSurface != null && !mReleased) { // 已经绘制过，在新的表面上重新绘制所有笔画
+            mSurface.release();
+            mSurface = createSurface();
+            redrawSurface(mSurface, mBaseLayer.mPaths);
+            if (mBackSurface != null) {
+                mBackSurface.release();
+                mBackSurface = createSurface();
+                redrawSurface(mBackSurface, mBaseLayer.mPaths);
+            }
+            invalidateComposite(null);
+            markContentChanged();
+            invalidate();
+        }
+    }
 
-        private boolean isRelocating = true; // 正在定位中
-        private boolean isCopying = false; // 正在仿制绘图中
+    /**
+     * 设置是否在后台的渲染线程中提交笔画，默认开启
+     * 开启时使用前后两块表面，笔画提交完成前作为覆盖层绘制在view上，提交完成后交换前后台表面
+     *
+     * @param asyncCommit
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        if (mAsyncCommit == asyncCommit) {
+            return;
+        }
+        flushRenderTasks();
+        mAsyncCommit = asyncCommit;
+        if (mSurface == null || mReleased) {
+            return;
+        }
+        if (mSurface instanceof TiledSurface) { // 重新分配内存上限
+            ((TiledSurface) mSurface).setMaxBytes(getSurfaceMaxBytes());
+        }
+        if (mAsyncCommit) { // 后台表面需要与前台表面一致
+            mBackSurface = createSurface();
+            redrawSurface(mBackSurface, mBaseLayer.mPaths);
+        } else if (mBackSurface != null) {
+            mBackSurface.release();
+            mBackSurface = null;
+        }
+    }
 
-        public CopyLocation(float x, float y) {
-            mX = x;
-            mY = y;
-            mTouchStartX = x;
-            mTouchStartY = y;
-            mPaint = new Paint();
-            mPaint.setAntiAlias(true);
-            mPaint.setStrokeWidth(mPaintSize);
-            mPaint.setStyle(Paint.Style.FILL);
-            mPaint.setStrokeJoin(Paint.Join.ROUND);
+    public boolean isAsyncCommit() {
+        return mAsyncCommit;
+    }
+
+    /**
+     * 设置手写笔画是否记录每个采样点的压力，默认不记录
+     *
+     * @param recordPressure
+     */
+    public void setRecordPressure(boolean recordPressure) {
+        mRecordPressure = recordPressure;
+    }
+
+    public boolean isRecordPressure() {
+        return mRecordPressure;
+    }
+
+    /**
+     * 设置手指抬起时简化手写笔画允许的误差，删除偏离笔画不超过该距离的采样点
+     * 误差为图片坐标中的像素，小于1时原图大小下看不出变化。默认为0，表示不简化
+     *
+     * @param tolerance
+     */
+    public void setSimplifyTolerance(float tolerance) {
+        mSimplifyTolerance = tolerance;
+    }
+
+    public float getSimplifyTolerance() {
+        return mSimplifyTolerance;
+    }
+
+    public void setOnStrokeSimplifiedListener(OnStrokeSimplifiedListener listener) {
+        mOnStrokeSimplifiedListener = listener;
+    }
+
+    /**
+     * 设置是否统计绘制、提交和撤销的耗时，手写笔画的采样点个数，笔画个数和图片占用的内存
+     * 默认不统计，不统计时绘制和提交只多一次判空
+     *
+     * @param enabled
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (enabled == (mMetrics != null)) {
+            return;
         }
+        mMetrics = enabled ? new GraffitiMetrics() : null;
+        mHudLines = null;
+        mLastMetricsTime = 0; // 下次绘制时立即刷新
+        invalidate();
+    }
 
+    public boolean isMetricsEnabled() {
+        return mMetrics != null;
+    }
 
-        public void updateLocation(float x, float y) {
-            mX = x;
-            mY = y;
+    /**
+     * 获取统计结果，没有开启统计时返回null，可以在任意线程中调用
+     * 路径数和内存占用是主线程绘制时按{@link #setMetricsInterval(long)}更新的最近一次快照
+     */
+    public GraffitiMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 设置统计结果的回调，开启统计后每隔一段时间在绘制时回调一次，见{@link #setMetricsInterval(long)}
+     *
+     * @param listener
+     */
+    public void setOnMetricsListener(OnMetricsListener listener) {
+        mOnMetricsListener = listener;
+    }
+
+    /**
+     * 设置回调和刷新统计结果的最小间隔（毫秒），默认为1000
+     *
+     * @param interval
+     */
+    public void setMetricsInterval(long interval) {
+        mMetricsInterval = interval;
+    }
+
+    public long getMetricsInterval() {
+        return mMetricsInterval;
+    }
+
+    /**
+     * 设置是否在左上角显示统计结果，显示时自动开启统计
+     *
+     * @param show
+     */
+    public void setShowMetricsHud(boolean show) {
+        mShowMetricsHud = show;
+        if (show) {
+            setMetricsEnabled(true);
         }
+        mHudLines = null;
+        mLastMetricsTime = 0; // 下次绘制时立即刷新
+        invalidate();
+    }
 
-        public void setStartPosition(float x, float y) {
-            mCopyStartX = mX;
-            mCopyStartY = mY;
-            mTouchStartX = x;
-            mTouchStartY = y;
+    public boolean isShowMetricsHud() {
+        return mShowMetricsHud;
+    }
+
+    /**
+     * 开始在内存中记录触摸事件（包括历史采样点）和工具的切换（画笔、形状、大小、纯色、撤销、重做、清屏、缩放、偏移、移动图片），
+     * 用{@link GraffitiTracePlayer}回放。开始时先记录当前的工具和缩放偏移，回放时从同样的状态开始。
+     * 图片底色、图层和放大镜不记录。不记录时处理触摸事件只多一次判空
+     */
+    public void startTraceRecording() {
+        mTraceBuffer = new ByteArrayOutputStream();
+        long now = SystemClock.uptimeMillis();
+        mTraceWriter = new TouchTrace.Writer(mTraceBuffer, mBitmap.getWidth(), mBitmap.getHeight(), getWidth(), getHeight(), now);
+        mTraceWriter.writeInt(TouchTrace.PEN, now, mPen.ordinal());
+        mTraceWriter.writeInt(TouchTrace.SHAPE, now, mShape.ordinal());
+        mTraceWriter.writeFloats(TouchTrace.PAINT_SIZE, now, mPaintSize);
+        if (mColor.getType() == GraffitiColor.Type.COLOR) {
+            mTraceWriter.writeInt(TouchTrace.COLOR, now, mColor.getColor());
         }
+        mTraceWriter.writeInt(TouchTrace.MOVING, now, isMoving ? 1 : 0);
+        mTraceWriter.writeFloats(TouchTrace.TRANSFORM, now, mScale, mTransX, mTransY);
+    }
 
-        public void drawItSelf(Canvas canvas) {
-            mPaint.setStrokeWidth(mPaintSize / 4);
-            mPaint.setStyle(Paint.Style.STROKE);
-            mPaint.setColor(0xaa666666); // 灰色
-            DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2 + mPaintSize / 8, mPaint);
+    /**
+     * 停止记录
+     *
+     * @return 记录的内容，没有开始记录时返回null
+     */
+    public byte[] stopTraceRecording() {
+        if (mTraceWriter == null) {
+            return null;
+        }
+        mTraceWriter.flush();
+        byte[] trace = mTraceBuffer.toByteArray();
+        mTraceWriter = null;
+        mTraceBuffer = null;
+        return trace;
+    }
 
-            mPaint.setStrokeWidth(mPaintSize / 16);
-            mPaint.setStyle(Paint.Style.STROKE);
-            mPaint.setColor(0xaaffffff); // 白色
-            DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2 + mPaintSize / 32, mPaint);
+    public boolean isTraceRecording() {
+        return mTraceWriter != null;
+    }
 
-            mPaint.setStyle(Paint.Style.FILL);
-            if (!isCopying) {
-                mPaint.setColor(0x44ff0000); // 红色
-                DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2, mPaint);
-            } else {
-                mPaint.setColor(0x44000088); // 蓝色
-                DrawUtil.drawCircle(canvas, mX, mY, mPaintSize / 2, mPaint);
-            }
+    /**
+     * 涂鸦图片的宽度
+     */
+    int getImageWidth() {
+        return mBitmap.getWidth();
+    }
+
+    int getImageHeight() {
+        return mBitmap.getHeight();
+    }
+
+    private void recordTrace(int type, int value) {
+        if (mTraceWriter != null && !mTraceSuspended) {
+            mTraceWriter.writeInt(type, SystemClock.uptimeMillis(), value);
         }
+    }
 
-        /**
-         * 判断是否点中
-         */
-        public boolean isInIt(float x, float y) {
-            if ((mX - x) * (mX - x) + (mY - y) * (mY - y) <= mPaintSize * mPaintSize) {
-                return true;
+    private void recordTransform() {
+        if (mTraceWriter != null && !mTraceSuspended) {
+            mTraceWriter.writeFloats(TouchTrace.TRANSFORM, SystemClock.uptimeMillis(), mScale, mTransX, mTransY);
+        }
+    }
+
+    private void recordTouchEvent(MotionEvent event) {
+        int pointerCount = Math.min(event.getPointerCount(), TouchTrace.MAX_POINTERS);
+        if (mTracePointerIds == null) {
+            mTracePointerIds = new int[TouchTrace.MAX_POINTERS];
+            mTraceCoords = new float[TouchTrace.MAX_POINTERS * 3];
+        }
+        for (int i = 0; i < pointerCount; i++) {
+            mTracePointerIds[i] = event.getPointerId(i);
+        }
+        int historySize = event.getHistorySize();
+        mTraceWriter.beginMotion(event.getEventTime(), event.getAction(), pointerCount, mTracePointerIds, historySize + 1);
+        for (int h = 0; h < historySize; h++) {
+            for (int i = 0; i < pointerCount; i++) {
+                mTraceCoords[i * 3] = event.getHistoricalX(i, h);
+                mTraceCoords[i * 3 + 1] = event.getHistoricalY(i, h);
+                mTraceCoords[i * 3 + 2] = event.getHistoricalPressure(i, h);
             }
-            return false;
+            mTraceWriter.writeSample(event.getHistoricalEventTime(h), mTraceCoords, pointerCount);
         }
+        for (int i = 0; i < pointerCount; i++) {
+            mTraceCoords[i * 3] = event.getX(i);
+            mTraceCoords[i * 3 + 1] = event.getY(i);
+            mTraceCoords[i * 3 + 2] = event.getPressure(i);
+        }
+        mTraceWriter.writeSample(event.getEventTime(), mTraceCoords, pointerCount);
+    }
 
+    /**
+     * 等待所有笔画提交完成后，计算涂鸦后的图片（包括可见图层）的像素哈希，用于比较回放结果是否一致
+     */
+    public long getPixelHash() {
+        flushRenderTasks();
+        Bitmap bitmap = getResultBitmap(true);
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        long hash = PixelHash.update(PixelHash.update(PixelHash.OFFSET_BASIS, width), height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            hash = PixelHash.update(hash, row, 0, width);
+        }
+        BitmapPool.getInstance().put(bitmap);
+        return hash;
     }
 
-    // ===================== api ==============
+    /**
+     * 设置原图的区域解码器（API 10以上），涂鸦的图片是原图的采样图时，放大超过采样图的分辨率后在子线程中解码可见区域的原图细节
+     * 解码器由GraffitiView负责回收
+     *
+     * @param decoder 为null时不再显示原图细节
+     */
+    public void setRegionDecoder(BitmapRegionDecoder decoder) {
+        if (mRegionDetail != null) {
+            mRegionDetail.release();
+            mRegionDetail = null;
+        }
+        if (decoder != null) {
+            mRegionDetail = new RegionDetail(decoder, mBitmap.getWidth(), mBitmap.getHeight(), new Runnable() {
+                @Override
+                public void run() {
+                    markContentChanged();
+                    invalidate();
+                }
+            });
+        }
+        markContentChanged();
+        invalidate();
+    }
 
     /**
-     * 保存
+     * 在最上面添加一个新的图层，新的笔画仍然画在当前图层中，见{@link #setCurrentLayer(GraffitiLayer)}
+     *
+     * @param name 图层的名称
      */
-    public void save() {
-//            initCanvas();
-//            draw(mBitmapCanvas, mPathStackBackup, false);
-//            draw(mBitmapCanvas, mPathStack, false);
-        mGraffitiListener.onSaved(mGraffitiBitmap, mBitmapEraser);
+    public GraffitiLayer addLayer(String name) {
+        GraffitiLayer layer = new GraffitiLayer(name, mBitmap.getWidth(), mBitmap.getHeight());
+        layer.setCacheScale(getLayerCacheScale());
+        mLayers.add(layer);
+        return layer;
     }
 
     /**
-     * 清屏
+     * 删除图层及其笔画，底层图层不能删除
+     * 删除当前图层后，当前图层变为底层图层
      */
-    public void clear() {
-        mPathStack.clear();
-//        mPathStackBackup.clear();
-        initCanvas();
+    public void removeLayer(GraffitiLayer layer) {
+        checkLayer(layer);
+        if (layer == mBaseLayer) {
+            throw new RuntimeException("can't remove the base layer");
+        }
+        clearLayer(layer);
+        layer.release();
+        mLayers.remove(layer);
+        if (mCurrentLayer == layer) {
+            mCurrentLayer = mBaseLayer;
+        }
+    }
+
+    /**
+     * 清空图层中的笔画，只重新绘制该图层
+     * 图层中的笔画同时从撤销和重做的记录中删除
+     */
+    public void clearLayer(GraffitiLayer layer) {
+        checkLayer(layer);
+        mPathStack.removeAll(layer.mPaths);
+        for (int i = mRedoStack.size() - 1; i >= 0; i--) {
+            if (mRedoLayers.get(i) == layer) {
+                mRedoStack.remove(i);
+                mRedoLayers.remove(i);
+            }
+        }
+        layer.clear();
+        if (layer == mBaseLayer) {
+            clearSurface();
+        } else {
+            invalidateComposite(null);
+            markContentChanged();
+        }
         invalidate();
     }
 
     /**
-     * 撤销
+     * 调整图层的顺序，底层图层始终在最下面
+     *
+     * @param index 新的位置，范围为[1, getLayerCount())
      */
-    public void undo() {
-        if (mPathStack.size() > 0) {
-            mPathStack.remove(mPathStack.size() - 1);
-            initCanvas();
-            draw(mBitmapCanvas, mPathStack, false);
-            invalidate();
+    public void moveLayer(GraffitiLayer layer, int index) {
+        checkLayer(layer);
+        if (layer == mBaseLayer || index < 1 || index >= mLayers.size()) {
+            throw new RuntimeException("can't move layer " + layer.getName() + " to " + index);
+        }
+        mLayers.remove(layer);
+        mLayers.add(index, layer);
+        invalidateComposite(null);
+        markContentChanged();
+        invalidate();
+    }
+
+    /**
+     * 显示或隐藏图层，隐藏的图层仍然可以涂鸦
+     */
+    public void setLayerVisible(GraffitiLayer layer, boolean visible) {
+        checkLayer(layer);
+        if (layer.mVisible == visible) {
+            return;
+        }
+        layer.mVisible = visible;
+        invalidateComposite(null);
+        markContentChanged();
+        invalidate();
+    }
+
+    /**
+     * 设置图层的不透明度
+     *
+     * @param alpha 0~255
+     */
+    public void setLayerAlpha(GraffitiLayer layer, int alpha) {
+        checkLayer(layer);
+        alpha = Math.max(0, Math.min(255, alpha));
+        if (layer.mAlpha == alpha) {
+            return;
+        }
+        layer.mAlpha = alpha;
+        invalidateComposite(null);
+        markContentChanged();
+        invalidate();
+    }
+
+    /**
+     * 设置新的笔画所在的图层
+     */
+    public void setCurrentLayer(GraffitiLayer layer) {
+        checkLayer(layer);
+        mCurrentLayer = layer;
+    }
+
+    public GraffitiLayer getCurrentLayer() {
+        return mCurrentLayer;
+    }
+
+    /**
+     * 所有图层，从下往上，第0个为底层图层，只读
+     */
+    public List<GraffitiLayer> getLayers() {
+        return Collections.unmodifiableList(mLayers);
+    }
+
+    public int getLayerCount() {
+        return mLayers.size();
+    }
+
+    /**
+     * 已提交的笔画所在的图层，从上往下查找
+     */
+    private GraffitiLayer getLayerOf(GraffitiPath path) {
+        for (int i = mLayers.size() - 1; i > 0; i--) {
+            if (mLayers.get(i).mPaths.contains(path)) {
+                return mLayers.get(i);
+            }
+        }
+        return mBaseLayer;
+    }
+
+    private void checkLayer(GraffitiLayer layer) {
+        if (!mLayers.contains(layer)) {
+            throw new RuntimeException("layer is not in this view!!!");
+        }
+    }
+
+    public boolean isUseTiledSurface() {
+        return mUseTiledSurface;
+    }
+
+    private boolean isLargeBitmap() {
+        return mBitmap.getWidth() * mBitmap.getHeight() > TILED_SURFACE_MIN_PIXELS;
+    }
+
+    /**
+     * 设置是否使用硬件加速绘制，默认关闭
+     * 开启后缩放、移动、放大器以及正在绘制的笔画都在GPU上绘制，提交到图片中的笔画仍在软件Canvas上绘制。
+     * 同时会使用分块的表面，提交笔画后只有被修改的图块需要重新上传纹理；已经调用{@link #setUseTiledSurface(boolean)}时保持其设置。
+     * 可见的图块都常驻内存，每个图块是单独上传的纹理。
+     * API18以下硬件加速的clipPath不完整，原图超过纹理尺寸限制时也无法上传，这些情况下保持软件绘制。
+     *
+     * @param hardwareRendering
+     */
+    public void setHardwareRendering(boolean hardwareRendering) {
+        mHardwareRendering = hardwareRendering
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && mBitmap.getWidth() <= MAX_TEXTURE_SIZE && mBitmap.getHeight() <= MAX_TEXTURE_SIZE;
+        if (Build.VERSION.SDK_INT >= 11) {
+            setLayerType(mHardwareRendering ? LAYER_TYPE_NONE : LAYER_TYPE_SOFTWARE, null);
         }
+        if (!mTiledSurfaceSet) {
+            updateTiledSurface(mHardwareRendering || isLargeBitmap());
+        }
+        invalidate();
+    }
+
+    /**
+     * 是否正在使用硬件加速绘制
+     */
+    public boolean isHardwareRendering() {
+        return mHardwareRendering;
     }
 
     /**
@@ -897,6 +2553,7 @@ public class GraffitiView extends View {
         mTransX = 0;
         mTransY = 0;
         judgePosition();
+        recordTransform();
         invalidate();
     }
 
@@ -907,6 +2564,7 @@ public class GraffitiView extends View {
      */
     public void setJustDrawOriginal(boolean justDrawOriginal) {
         isJustDrawOriginal = justDrawOriginal;
+        markContentChanged();
         invalidate();
     }
 
@@ -921,6 +2579,8 @@ public class GraffitiView extends View {
      */
     public void setColor(int color) {
         mColor.setColor(color);
+        recordTrace(TouchTrace.COLOR, color);
+        markContentChanged();
         invalidate();
     }
 
@@ -929,6 +2589,7 @@ public class GraffitiView extends View {
             return;
         }
         mColor.setColor(bitmap);
+        markContentChanged();
         invalidate();
     }
 
@@ -937,6 +2598,7 @@ public class GraffitiView extends View {
             return;
         }
         mColor.setColor(bitmap, tileX, tileY);
+        markContentChanged();
         invalidate();
     }
 
@@ -953,6 +2615,7 @@ public class GraffitiView extends View {
         this.mScale = scale;
         judgePosition();
         resetMatrix();
+        recordTransform();
         invalidate();
     }
 
@@ -970,7 +2633,12 @@ public class GraffitiView extends View {
             throw new RuntimeException("Pen can't be null");
         }
         mPen = pen;
+        recordTrace(TouchTrace.PEN, pen.ordinal());
+        if (pen == Pen.ERASER) { // 第一次使用橡皮擦时才加载底图
+            loadEraser();
+        }
         resetMatrix();
+        markContentChanged();
         invalidate();
     }
 
@@ -988,6 +2656,8 @@ public class GraffitiView extends View {
             throw new RuntimeException("Shape can't be null");
         }
         mShape = shape;
+        recordTrace(TouchTrace.SHAPE, shape.ordinal());
+        markContentChanged();
         invalidate();
     }
 
@@ -1000,6 +2670,7 @@ public class GraffitiView extends View {
         mTransY = transY;
         judgePosition();
         resetMatrix();
+        recordTransform();
         invalidate();
     }
 
@@ -1011,6 +2682,7 @@ public class GraffitiView extends View {
     public void setTransX(float transX) {
         this.mTransX = transX;
         judgePosition();
+        recordTransform();
         invalidate();
     }
 
@@ -1021,6 +2693,7 @@ public class GraffitiView extends View {
     public void setTransY(float transY) {
         this.mTransY = transY;
         judgePosition();
+        recordTransform();
         invalidate();
     }
 
@@ -1031,6 +2704,10 @@ public class GraffitiView extends View {
 
     public void setPaintSize(float paintSize) {
         mPaintSize = paintSize;
+        if (mTraceWriter != null && !mTraceSuspended) {
+            mTraceWriter.writeFloats(TouchTrace.PAINT_SIZE, SystemClock.uptimeMillis(), paintSize);
+        }
+        markContentChanged();
         invalidate();
     }
 
@@ -1073,7 +2750,7 @@ public class GraffitiView extends View {
         /**
          * 保存图片
          *
-         * @param bitmap       涂鸦后的图片
+         * @param bitmap       涂鸦后的图片，由view持有，调用者不能回收，{@link GraffitiView#release()}后不能再使用；之后的涂鸦可能修改该图片
          * @param bitmapEraser 橡皮擦底图
          */
         void onSaved(Bitmap bitmap, Bitmap bitmapEraser);
@@ -1091,4 +2768,51 @@ public class GraffitiView extends View {
          */
         void onReady();
     }
+
+    /**
+     * 手写笔画被简化的回调，{@link #setSimplifyTolerance(float)}
+     */
+    public interface OnStrokeSimplifiedListener {
+
+        /**
+         * @param path    简化后的笔画
+         * @param count   简化前的采样点个数
+         * @param removed 删除的采样点个数
+         */
+        void onStrokeSimplified(GraffitiPath path, int count, int removed);
+    }
+
+    /**
+     * 统计结果的回调，{@link #setOnMetricsListener(OnMetricsListener)}，在主线程中回调
+     */
+    public interface OnMetricsListener {
+
+        /**
+         * @param metrics 统计结果，之后会继续更新，需要保留时复制其中的数值
+         */
+        void onMetrics(GraffitiMetrics metrics);
+    }
+
+    /**
+     * 保存到文件的回调，{@link #save(File, SaveListener)}，{@link #save(List, SaveListener)}
+     */
+    public interface SaveListener {
+
+        /**
+         * 保存进度
+         *
+         * @param bytes 已经写入的字节数
+         */
+        void onSaveProgress(long bytes);
+
+        /**
+         * 保存完成
+         */
+        void onSaveCompleted(File file);
+
+        /**
+         * 保存失败
+         */
+        void onSaveFailed(File file, String msg);
+    }
 }
@@ -0,0 +1,256 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+
+import cn.forward.androids.utils.ThreadUtil;
+import cn.hzw.graffiti.util.BitmapPool;
+
+/**
+ * 原图的局部细节
+ * 涂鸦的图片是原图的采样图，放大超过采样图的分辨率时，在子线程中解码可见区域的原图，绘制在采样图上面。
+ * 已提交的笔画只在细节或者内容变化时重新绘制到细节的缓存中，每一帧只绘制缓存。
+ * 细节和缓存的图片从图片池中获取，不再使用时放回，缩放时重复解码不会反复分配。
+ * 除了构造方法，其他方法只能在主线程中调用
+ */
+class RegionDetail {
+
+    /**
+     * 把笔画绘制到细节的缓存中
+     */
+    interface StrokePainter {
+
+        /**
+         * @param canvas 坐标系为采样图坐标系，已经裁剪为细节的区域
+         * @param rect   细节的区域，采样图坐标，不相交的笔画可以跳过
+         */
+        void drawStrokes(Canvas canvas, RectF rect);
+    }
+
+    /** 解码区域在可见区域外扩展的比例，小范围平移时不用重新解码 */
+    private static final float EXTEND = 0.25f;
+
+    private final BitmapRegionDecoder mDecoder;
+    /** 原图与采样图的尺寸比例 */
+    private final float mRatio;
+    private final int mWidth, mHeight; // 采样图的大小
+    private final Runnable mOnLoaded;
+    private final Paint mPaint;
+
+    private Bitmap mBitmap;
+    /** mBitmap在采样图中的区域 */
+    private final RectF mRect = new RectF();
+    /** mBitmap相对于原图的采样率 */
+    private int mRegionSample;
+
+    /** 细节加上笔画的缓存，与mBitmap大小相同 */
+    private Bitmap mCache;
+    private Canvas mCacheCanvas;
+    /** 缓存对应的内容版本，细节重新解码后缓存失效 */
+    private long mCacheVersion;
+    private boolean mCacheValid;
+
+    private boolean mLoading;
+    private boolean mHasPending;
+    private final RectF mPendingRect = new RectF();
+    private int mPendingSample;
+    private boolean mReleased;
+
+    /**
+     * @param decoder  原图的区域解码器
+     * @param width    采样图的宽度
+     * @param height   采样图的高度
+     * @param onLoaded 新的细节解码完成时在主线程中回调
+     */
+    RegionDetail(BitmapRegionDecoder decoder, int width, int height, Runnable onLoaded) {
+        mDecoder = decoder;
+        mWidth = width;
+        mHeight = height;
+        mRatio = decoder.getWidth() * 1f / width;
+        mOnLoaded = onLoaded;
+        mPaint = new Paint();
+        mPaint.setFilterBitmap(true);
+    }
+
+    /**
+     * 根据当前的可见区域更新细节，需要时在子线程中重新解码
+     *
+     * @param visible      可见区域，采样图坐标
+     * @param displayScale 采样图的一个像素在屏幕上的大小
+     */
+    void update(RectF visible, float displayScale) {
+        if (mReleased) {
+            return;
+        }
+        // 最大的2的幂，使解码后的一个像素在屏幕上不超过一个像素
+        int regionSample = 1;
+        while (regionSample * 2 <= mRatio / displayScale) {
+            regionSample *= 2;
+        }
+        if (regionSample >= mRatio) { // 采样图的分辨率已经足够
+            mHasPending = false;
+            recycleBitmap();
+            return;
+        }
+        if (mBitmap != null && mRegionSample == regionSample && mRect.contains(visible)) {
+            return;
+        }
+        if (mLoading && mPendingSample == regionSample && mPendingRect.contains(visible)) {
+            return;
+        }
+        float dx = visible.width() * EXTEND, dy = visible.height() * EXTEND;
+        mPendingRect.set(Math.max(0, visible.left - dx), Math.max(0, visible.top - dy),
+                Math.min(mWidth, visible.right + dx), Math.min(mHeight, visible.bottom + dy));
+        mPendingSample = regionSample;
+        mHasPending = true;
+        if (!mLoading) {
+            decodeNext();
+        }
+    }
+
+    private void decodeNext() {
+        if (!mHasPending || mReleased) {
+            return;
+        }
+        mHasPending = false;
+        mLoading = true;
+        final Rect region = new Rect((int) (mPendingRect.left * mRatio), (int) (mPendingRect.top * mRatio),
+                Math.min(mDecoder.getWidth(), (int) Math.ceil(mPendingRect.right * mRatio)),
+                Math.min(mDecoder.getHeight(), (int) Math.ceil(mPendingRect.bottom * mRatio)));
+        final int sample = mPendingSample;
+        ThreadUtil.getInstance().runOnAsyncThread(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                if (!region.isEmpty()) {
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sample;
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                    options.inMutable = true; // 不可修改的图片不能放回图片池
+                    try {
+                        bitmap = decodeRegion(region, options);
+                    } catch (Throwable e) { // 内存不足或解码器已回收
+                        e.printStackTrace();
+                    }
+                }
+                final Bitmap result = bitmap;
+                ThreadUtil.getInstance().runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(result, region, sample);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 在子线程中解码，4.4以上复用图片池中的图片，大小不合适时重新分配
+     */
+    private Bitmap decodeRegion(Rect region, BitmapFactory.Options options) {
+        if (Build.VERSION.SDK_INT >= 19) {
+            // 解码结果的大小为区域按采样率向上取整
+            int width = (region.width() + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (region.height() + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = BitmapPool.getInstance().get(width, height, options.inPreferredConfig);
+            if (options.inBitmap != null) {
+                try {
+                    return mDecoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException e) { // 图片不能复用
+                    BitmapPool.getInstance().put(options.inBitmap);
+                    options.inBitmap = null;
+                }
+            }
+        }
+        return mDecoder.decodeRegion(region, options);
+    }
+
+    private void onDecoded(Bitmap bitmap, Rect region, int sample) {
+        mLoading = false;
+        if (mReleased) {
+            BitmapPool.getInstance().put(bitmap);
+            mDecoder.recycle();
+            return;
+        }
+        if (bitmap != null) {
+            recycleBitmap();
+            mBitmap = bitmap;
+            mRect.set(region.left / mRatio, region.top / mRatio, region.right / mRatio, region.bottom / mRatio);
+            mRegionSample = sample;
+            mCacheValid = false;
+            mOnLoaded.run();
+        }
+        decodeNext();
+    }
+
+    /**
+     * 绘制细节和笔画，canvas的坐标系为采样图坐标系，绘制后canvas被裁剪为细节的区域
+     *
+     * @param version 笔画内容的版本，与上次不同时重新绘制缓存
+     * @return 是否有可以绘制的细节
+     */
+    boolean draw(Canvas canvas, long version, StrokePainter painter) {
+        if (mBitmap == null) {
+            return false;
+        }
+        if (!mCacheValid || mCacheVersion != version) {
+            updateCache(painter);
+            mCacheVersion = version;
+            mCacheValid = true;
+        }
+        canvas.clipRect(mRect);
+        canvas.drawBitmap(mCache, null, mRect, mPaint);
+        return true;
+    }
+
+    private void updateCache(StrokePainter painter) {
+        if (mCache == null || mCache.getWidth() != mBitmap.getWidth() || mCache.getHeight() != mBitmap.getHeight()) {
+            recycleCache();
+            mCache = BitmapPool.getInstance().obtain(mBitmap.getWidth(), mBitmap.getHeight(), Bitmap.Config.RGB_565);
+            mCacheCanvas = new Canvas(mCache);
+        }
+        Canvas canvas = mCacheCanvas;
+        canvas.drawBitmap(mBitmap, 0, 0, null);
+        canvas.save();
+        canvas.scale(mCache.getWidth() / mRect.width(), mCache.getHeight() / mRect.height());
+        canvas.translate(-mRect.left, -mRect.top);
+        canvas.clipRect(mRect);
+        painter.drawStrokes(canvas, mRect);
+        canvas.restore();
+    }
+
+    private void recycleBitmap() {
+        if (mBitmap != null) {
+            BitmapPool.getInstance().put(mBitmap);
+            mBitmap = null;
+        }
+        mCacheValid = false;
+        recycleCache();
+    }
+
+    private void recycleCache() {
+        if (mCache != null) {
+            BitmapPool.getInstance().put(mCache);
+            mCache = null;
+            mCacheCanvas = null;
+        }
+    }
+
+    /**
+     * 回收细节和解码器，正在解码时等解码完成后再回收解码器
+     */
+    void release() {
+        mReleased = true;
+        mHasPending = false;
+        recycleBitmap();
+        if (!mLoading) {
+            mDecoder.recycle();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.File;
+
+import cn.hzw.graffiti.core.GraffitiMath;
+import cn.hzw.graffiti.core.SaveFormat;
+
+/**
+ * 保存时的一个输出：文件路径、最长边的像素数、格式和质量
+ * 多个输出一起保存时涂鸦图片只合成一次，较小的输出由较大的逐级缩小得到，见{@link GraffitiView#save(java.util.List, GraffitiView.SaveListener)}
+ */
+public class SaveSpec {
+
+    /** 保存的路径 */
+    public final File mFile;
+    /** 最长边的像素数，图片更小或者为0时保持原来的大小，不会放大 */
+    public final int mMaxSize;
+    public final Bitmap.CompressFormat mFormat;
+    /** 压缩质量0~100，PNG忽略 */
+    public final int mQuality;
+
+    /**
+     * 原来大小的输出
+     */
+    public SaveSpec(File file, Bitmap.CompressFormat format, int quality) {
+        this(file, 0, format, quality);
+    }
+
+    public SaveSpec(File file, int maxSize, Bitmap.CompressFormat format, int quality) {
+        if (file == null || format == null) {
+            throw new RuntimeException("file and format can't be null!!!");
+        }
+        if (quality < 0 || quality > 100) {
+            throw new RuntimeException("quality must be in [0, 100]: " + quality);
+        }
+        mFile = file;
+        mMaxSize = maxSize;
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    /**
+     * 按系统支持的情况选择编码格式和质量，见{@link SaveFormat}
+     *
+     * @param quality    0~100，无损WEBP为压缩力度
+     * @param fastEncode 是否降低压缩力度换取编码速度
+     */
+    public SaveSpec(File file, int maxSize, SaveFormat format, int quality, boolean fastEncode) {
+        this(file, maxSize, Bitmap.CompressFormat.valueOf(format.getEncoderName(Build.VERSION.SDK_INT)),
+                format.getQuality(quality, fastEncode, Build.VERSION.SDK_INT));
+    }
+
+    /**
+     * 按比例缩小到最长边不超过mMaxSize后的宽度
+     */
+    int getTargetWidth(int width, int height) {
+        return GraffitiMath.fitLongestEdge(width, width, height, mMaxSize);
+    }
+
+    int getTargetHeight(int width, int height) {
+        return GraffitiMath.fitLongestEdge(height, width, height, mMaxSize);
+    }
+}
@@ -0,0 +1,48 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 图块像素的压缩与解压，复用同一个Deflater/Inflater，避免每个图块都分配native资源
+ */
+class TileCodec {
+
+    private byte[] mCompressBuffer = new byte[16 * 1024];
+    private Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater mInflater = new Inflater();
+
+    byte[] compress(byte[] data, int length) {
+        mDeflater.reset();
+        mDeflater.setInput(data, 0, length);
+        mDeflater.finish();
+        int size = 0;
+        while (!mDeflater.finished()) {
+            if (size == mCompressBuffer.length) {
+                mCompressBuffer = Arrays.copyOf(mCompressBuffer, mCompressBuffer.length * 2);
+            }
+            size += mDeflater.deflate(mCompressBuffer, size, mCompressBuffer.length - size);
+        }
+        return Arrays.copyOf(mCompressBuffer, size);
+    }
+
+    /**
+     * @return 解压失败时返回false
+     */
+    boolean decompress(byte[] data, byte[] out) {
+        mInflater.reset();
+        mInflater.setInput(data);
+        try {
+            int size = 0;
+            while (!mInflater.finished() && size < out.length) {
+                size += mInflater.inflate(out, size, out.length - size);
+            }
+            return true;
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * 基于图块差异的撤销记录
+ * 每次提交笔画前，把笔画覆盖到的图块压缩保存下来，撤销时只还原这些图块，代价与笔画面积成正比，而不是与历史长度成正比
+ */
+class TileHistory implements GraffitiSurface.Painter {
+
+    /** 图块边长 */
+    static final int TILE_SIZE = 128;
+    /** 默认的压缩数据上限，超出后丢弃最早记录的图块，撤销到这些记录时退回到整体重绘 */
+    static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * 一次提交对应的记录
+     */
+    private static class Record {
+        int[] mTileX, mTileY; // 图块左上角在图片中的坐标
+        byte[][] mPixels; // 压缩后的提交前图块像素，为null表示已被丢弃
+        int mBytes;
+    }
+
+    private final ArrayList<Record> mRecords = new ArrayList<Record>();
+    private final int mMaxBytes;
+    private int mBytes;
+    /** 最早一个仍保存了图块的记录 */
+    private int mOldestIndex;
+    /** 最近一次撤销的记录，用于在另一块表面上重复还原 */
+    private Record mLastPopped;
+
+    private Bitmap mTile;
+    private Canvas mTileCanvas;
+    private ByteBuffer mBuffer;
+    private TileCodec mCodec = new TileCodec();
+    private Paint mRestorePaint;
+    /** 正在还原的图块位置 */
+    private int mRestoreX, mRestoreY;
+    private RectF mRestoreRect = new RectF();
+
+    TileHistory() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    TileHistory(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mRestorePaint = new Paint();
+        mRestorePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC)); // 还原时直接覆盖，不与原有像素混合
+    }
+
+    /**
+     * 在笔画绘制到图片之前调用，保存bounds覆盖到的图块
+     *
+     * @param surface 涂鸦表面
+     * @param bounds  笔画在图片中的区域
+     */
+    void push(GraffitiSurface surface, RectF bounds) {
+        ensureTile(surface.getConfig());
+        int left = Math.max(0, (int) Math.floor(bounds.left)) / TILE_SIZE;
+        int top = Math.max(0, (int) Math.floor(bounds.top)) / TILE_SIZE;
+        int right = Math.min(surface.getWidth() - 1, (int) Math.ceil(bounds.right)) / TILE_SIZE;
+        int bottom = Math.min(surface.getHeight() - 1, (int) Math.ceil(bounds.bottom)) / TILE_SIZE;
+
+        Record record = new Record();
+        int count = right < left || bottom < top ? 0 : (right - left + 1) * (bottom - top + 1);
+        record.mTileX = new int[count];
+        record.mTileY = new int[count];
+        record.mPixels = new byte[count][];
+        int i = 0;
+        for (int row = top; row <= bottom && count > 0; row++) {
+            for (int col = left; col <= right; col++) {
+                int x = col * TILE_SIZE, y = row * TILE_SIZE;
+                surface.read(mTileCanvas, x, y, TILE_SIZE, TILE_SIZE, mRestorePaint);
+                mBuffer.rewind();
+                mTile.copyPixelsToBuffer(mBuffer);
+                record.mTileX[i] = x;
+                record.mTileY[i] = y;
+                record.mPixels[i] = mCodec.compress(mBuffer.array(), mBuffer.position());
+                record.mBytes += record.mPixels[i].length;
+                i++;
+            }
+        }
+        mRecords.add(record);
+        mBytes += record.mBytes;
+        trim();
+    }
+
+    /**
+     * 还原最后一次提交覆盖的图块
+     *
+     * @param surface 涂鸦表面
+     * @return false表示该记录的图块已被丢弃，需要调用者整体重绘
+     */
+    boolean pop(GraffitiSurface surface) {
+        if (mRecords.isEmpty()) {
+            return false;
+        }
+        Record record = mRecords.remove(mRecords.size() - 1);
+        mOldestIndex = Math.min(mOldestIndex, mRecords.size());
+        mLastPopped = null;
+        if (record.mPixels == null) {
+            return false;
+        }
+        mBytes -= record.mBytes;
+        if (!restore(record, surface)) {
+            return false;
+        }
+        mLastPopped = record;
+        return true;
+    }
+
+    /**
+     * 在另一块表面上还原最近一次撤销的图块
+     */
+    boolean restoreLast(GraffitiSurface surface) {
+        return mLastPopped != null && restore(mLastPopped, surface);
+    }
+
+    private boolean restore(Record record, GraffitiSurface surface) {
+        for (int i = 0; i < record.mPixels.length; i++) {
+            if (!mCodec.decompress(record.mPixels[i], mBuffer.array())) {
+                return false;
+            }
+            mBuffer.rewind();
+            mTile.copyPixelsFromBuffer(mBuffer);
+            mRestoreX = record.mTileX[i];
+            mRestoreY = record.mTileY[i];
+            mRestoreRect.set(mRestoreX, mRestoreY, mRestoreX + TILE_SIZE, mRestoreY + TILE_SIZE);
+            surface.draw(mRestoreRect, this);
+        }
+        return true;
+    }
+
+    @Override
+    public void paint(Canvas canvas) {
+        canvas.drawBitmap(mTile, mRestoreX, mRestoreY, mRestorePaint);
+    }
+
+    void clear() {
+        mRecords.clear();
+        mLastPopped = null;
+        mBytes = 0;
+        mOldestIndex = 0;
+    }
+
+    /**
+     * 超出上限时，从最早的记录开始丢弃图块
+     */
+    private void trim() {
+        while (mBytes > mMaxBytes && mOldestIndex < mRecords.size() - 1) {
+            Record record = mRecords.get(mOldestIndex++);
+            if (record.mPixels != null) {
+                mBytes -= record.mBytes;
+                record.mPixels = null;
+                record.mTileX = record.mTileY = null;
+            }
+        }
+    }
+
+    private void ensureTile(Bitmap.Config config) {
+        if (mTile != null && mTile.getConfig() == config) {
+            return;
+        }
+        if (mTile != null) {
+            mTile.recycle();
+        }
+        mTile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, config);
+        mTileCanvas = new Canvas(mTile);
+        mBuffer = ByteBuffer.allocate(mTile.getRowBytes() * TILE_SIZE);
+    }
+}
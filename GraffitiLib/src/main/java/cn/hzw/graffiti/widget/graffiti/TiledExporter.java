@@ -0,0 +1,417 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.hzw.graffiti.core.TileGrid;
+import cn.hzw.graffiti.util.BitmapDecodeUtil;
+import cn.hzw.graffiti.util.BitmapPool;
+import cn.hzw.graffiti.widget.graffiti.info.GraffitiPath;
+
+/**
+ * 按原图的分辨率导出涂鸦：把原图分成互不重叠的图块，每个图块单独从区域解码器解码原图，
+ * 用自己的Canvas重新绘制与之相交的笔画，多个图块并行绘制（API 21以上使用ForkJoinPool）。
+ * 区域解码器的decodeRegion()内部是串行的，每个绘制线程使用自己的解码器，解码也能并行。
+ * 同时只有并行数个图块在内存中，工作内存不超过 并行数×(图块大小×(4+2+4) + 解码器的索引) 字节。
+ * 仿制和自定义橡皮擦底图取自涂鸦图片（采样图），放大后绘制；默认橡皮擦还原原图的像素
+ */
+class TiledExporter {
+
+    /**
+     * 接收绘制完成的图块，在多个线程中同时回调，回调返回后图块被复用
+     */
+    interface TileSink {
+        void onTile(int left, int top, Bitmap tile);
+    }
+
+    /** 默认的图块边长 */
+    static final int DEFAULT_TILE_SIZE = 512;
+
+    private static class Layer {
+        final List<GraffitiPath> mPaths;
+        final int mAlpha;
+
+        Layer(List<GraffitiPath> paths, int alpha) {
+            mPaths = paths;
+            mAlpha = alpha;
+        }
+    }
+
+    private final String mImagePath;
+    /** 涂鸦图片，即笔画坐标所在的图片，仿制时使用。导出结束后不再引用 */
+    private Bitmap mBitmap;
+    private Bitmap mEraser;
+    /** 每个绘制线程自己的区域解码器 */
+    private final ThreadLocal<BitmapRegionDecoder> mThreadDecoder = new ThreadLocal<BitmapRegionDecoder>();
+    /** 所有打开的区域解码器，导出结束后回收，由自身保护 */
+    private final ArrayList<BitmapRegionDecoder> mDecoders = new ArrayList<BitmapRegionDecoder>();
+    private TileGrid mGrid;
+    /** 原图相对于涂鸦图片的缩放 */
+    private float mScaleX, mScaleY;
+    private final ArrayList<Layer> mLayers = new ArrayList<Layer>();
+    private int mTileSize = DEFAULT_TILE_SIZE;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    /** exportBitmap()拼接结果占用内存的上限 */
+    private long mMaxResultBytes = Runtime.getRuntime().maxMemory() / 2;
+    private final Paint mCopyPaint;
+
+    private volatile boolean mCancelled;
+    /** 导出是否已经结束，由this保护 */
+    private boolean mFinished;
+    /** 导出结束后执行的操作，由this保护 */
+    private final ArrayList<Runnable> mOnFinished = new ArrayList<Runnable>();
+
+    /**
+     * @param imagePath 原图的路径，涂鸦图片是由它解码的采样图
+     * @param bitmap    涂鸦图片，笔画的坐标为该图片的坐标
+     * @param eraser    自定义的橡皮擦底图（涂鸦图片的大小），为null时橡皮擦还原原图
+     */
+    TiledExporter(String imagePath, Bitmap bitmap, Bitmap eraser) {
+        mImagePath = imagePath;
+        mBitmap = bitmap;
+        mEraser = eraser;
+        mCopyPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * 按从下到上的顺序添加图层，第一个图层的笔画直接绘制在原图上，其他图层绘制在透明的图块上再按不透明度叠加
+     */
+    void addLayer(List<GraffitiPath> paths, int alpha) {
+        mLayers.add(new Layer(paths, alpha));
+    }
+
+    void setTileSize(int tileSize) {
+        mTileSize = tileSize;
+    }
+
+    void setParallelism(int parallelism) {
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * 设置exportBitmap()拼接结果占用内存的上限（字节），默认为最大堆内存的一半
+     */
+    void setMaxResultBytes(long maxResultBytes) {
+        mMaxResultBytes = maxResultBytes;
+    }
+
+    /**
+     * 取消导出，不等待正在绘制的图块。取消后图块的结果被丢弃，导出线程在当前图块完成后结束
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * 导出结束（完成、失败或取消）后在导出线程中执行，已经结束时立即在当前线程中执行
+     * 用于在导出不再使用橡皮擦底图等图片之后再回收它们
+     */
+    void runWhenFinished(Runnable runnable) {
+        synchronized (this) {
+            if (!mFinished) {
+                mOnFinished.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * 打开原图的区域解码器，绘制所有的图块，绘制完成或取消后返回
+     *
+     * @throws RuntimeException 原图不支持区域解码（例如需要按exif旋转）时
+     */
+    void export(TileSink sink) {
+        try {
+            if (mCancelled) {
+                return;
+            }
+            BitmapRegionDecoder decoder = obtainDecoder();
+            mGrid = new TileGrid(decoder.getWidth(), decoder.getHeight(), mTileSize);
+            mScaleX = decoder.getWidth() * 1f / mBitmap.getWidth();
+            mScaleY = decoder.getHeight() * 1f / mBitmap.getHeight();
+            if (Build.VERSION.SDK_INT >= 21) {
+                ForkJoinRunner.run(this, sink, mGrid.getCount(), mParallelism);
+            } else {
+                runOnThreads(sink, mGrid.getCount());
+            }
+        } finally {
+            mThreadDecoder.remove();
+            synchronized (mDecoders) {
+                for (int i = 0; i < mDecoders.size(); i++) {
+                    mDecoders.get(i).recycle();
+                }
+                mDecoders.clear();
+            }
+            finish();
+        }
+    }
+
+    /**
+     * 不再引用涂鸦图片和橡皮擦底图，执行等待导出结束的操作
+     */
+    private void finish() {
+        ArrayList<Runnable> runnables;
+        synchronized (this) {
+            mBitmap = null;
+            mEraser = null;
+            mFinished = true;
+            runnables = new ArrayList<Runnable>(mOnFinished);
+            mOnFinished.clear();
+        }
+        for (int i = 0; i < runnables.size(); i++) {
+            runnables.get(i).run();
+        }
+    }
+
+    /**
+     * 获取当前线程的区域解码器，第一次调用时打开
+     */
+    private BitmapRegionDecoder obtainDecoder() {
+        BitmapRegionDecoder decoder = mThreadDecoder.get();
+        if (decoder == null) {
+            decoder = BitmapDecodeUtil.newRegionDecoder(mImagePath);
+            if (decoder == null) {
+                throw new RuntimeException("can't decode regions of " + mImagePath);
+            }
+            synchronized (mDecoders) {
+                mDecoders.add(decoder);
+            }
+            mThreadDecoder.set(decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * 把所有的图块拼接成完整的图片，拼接结果占用 宽×高×2 字节，超过{@link #setMaxResultBytes(long)}时不绘制任何图块。
+     * 不需要完整图片时用{@link #export(TileSink)}逐块处理，内存只与图块有关
+     *
+     * @return 取消时返回null，否则由调用者负责回收或放回图片池
+     * @throws RuntimeException 拼接结果超过内存上限时
+     */
+    Bitmap exportBitmap() {
+        int[] size = new int[2];
+        if (!BitmapDecodeUtil.readImageSize(mImagePath, size)) {
+            throw new RuntimeException("can't decode " + mImagePath);
+        }
+        long bytes = (long) size[0] * size[1] * 2;
+        if (bytes > mMaxResultBytes) {
+            throw new RuntimeException("full resolution image needs " + bytes + " bytes, exceeds the limit " + mMaxResultBytes);
+        }
+        final Bitmap result = BitmapPool.getInstance().obtain(size[0], size[1], Bitmap.Config.RGB_565);
+        final Canvas canvas = new Canvas(result);
+        try {
+            export(new TileSink() {
+                @Override
+                public void onTile(int left, int top, Bitmap tile) {
+                    synchronized (result) {
+                        canvas.drawBitmap(tile, left, top, mCopyPaint);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            BitmapPool.getInstance().put(result);
+            throw e;
+        }
+        if (mCancelled) {
+            BitmapPool.getInstance().put(result);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * API 21以下用固定的线程依次领取图块
+     */
+    private void runOnThreads(final TileSink sink, final int count) {
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int index;
+                    while (!mCancelled && (index = next.getAndIncrement()) < count) {
+                        renderTile(index, sink);
+                    }
+                } finally {
+                    mThreadDecoder.remove();
+                }
+            }
+        };
+        int threadCount = Math.min(mParallelism, count);
+        Thread[] threads = new Thread[threadCount - 1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(worker, "GraffitiExport-" + i);
+            threads[i].start();
+        }
+        worker.run(); // 当前线程也参与绘制
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                mCancelled = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 绘制第index个图块：解码原图的对应区域，复制到图块中，再绘制与之相交的笔画
+     */
+    void renderTile(int index, TileSink sink) {
+        if (mCancelled) {
+            return;
+        }
+        Rect region = new Rect(mGrid.getLeft(index), mGrid.getTop(index), mGrid.getRight(index), mGrid.getBottom(index));
+        // 图块在笔画坐标系中的区域，用于跳过不相交的笔画
+        RectF bounds = new RectF(region.left / mScaleX, region.top / mScaleY, region.right / mScaleX, region.bottom / mScaleY);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap source = obtainDecoder().decodeRegion(region, options);
+        if (source == null) {
+            throw new RuntimeException("decode region failed: " + region);
+        }
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap tile = pool.obtain(region.width(), region.height(), Bitmap.Config.RGB_565);
+        Bitmap layerTile = null;
+        try {
+            Canvas canvas = new Canvas(tile);
+            canvas.drawBitmap(source, 0, 0, mCopyPaint);
+            Matrix matrix = new Matrix(); // 笔画坐标到图块坐标
+            matrix.setScale(mScaleX, mScaleY);
+            matrix.postTranslate(-region.left, -region.top);
+            canvas.setMatrix(matrix);
+
+            GraffitiRenderer renderer = new GraffitiRenderer(mBitmap);
+            if (mEraser != null) {
+                renderer.setEraser(mEraser);
+            } else { // 橡皮擦还原原图的像素：原图图块坐标到笔画坐标
+                Matrix eraserMatrix = new Matrix();
+                eraserMatrix.setScale(1 / mScaleX, 1 / mScaleY);
+                eraserMatrix.postTranslate(region.left / mScaleX, region.top / mScaleY);
+                renderer.setEraser(source, eraserMatrix);
+            }
+            for (int i = 0; i < mLayers.size() && !mCancelled; i++) {
+                Layer layer = mLayers.get(i);
+                if (layer.mAlpha == 0 || !intersects(layer.mPaths, bounds)) {
+                    continue;
+                }
+                if (i == 0 && layer.mAlpha == 255) { // 底层图层直接绘制在原图上
+                    drawPaths(canvas, renderer, layer.mPaths, bounds);
+                    continue;
+                }
+                if (layerTile == null) {
+                    layerTile = pool.obtain(region.width(), region.height(), Bitmap.Config.ARGB_8888);
+                }
+                Canvas layerCanvas = new Canvas(layerTile);
+                if (i == 0) { // 半透明的底层图层：原图加上笔画，再按透明度叠加在原图上
+                    layerCanvas.drawBitmap(source, 0, 0, mCopyPaint);
+                } else {
+                    renderer.setEraseToTransparent(true);
+                    layerCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+                }
+                layerCanvas.setMatrix(matrix);
+                drawPaths(layerCanvas, renderer, layer.mPaths, bounds);
+                Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                paint.setAlpha(layer.mAlpha);
+                canvas.save();
+                canvas.setMatrix(null);
+                canvas.drawBitmap(layerTile, 0, 0, paint);
+                canvas.restore();
+            }
+            if (!mCancelled) {
+                sink.onTile(region.left, region.top, tile);
+            }
+        } finally {
+            pool.put(tile);
+            pool.put(source);
+            if (layerTile != null) {
+                pool.put(layerTile);
+            }
+        }
+    }
+
+    private static void drawPaths(Canvas canvas, GraffitiRenderer renderer, List<GraffitiPath> paths, RectF bounds) {
+        for (int i = 0; i < paths.size(); i++) {
+            GraffitiPath path = paths.get(i);
+            if (path.mBounds == null || RectF.intersects(path.mBounds, bounds)) {
+                renderer.draw(canvas, path);
+            }
+        }
+    }
+
+    private static boolean intersects(List<GraffitiPath> paths, RectF bounds) {
+        for (int i = 0; i < paths.size(); i++) {
+            GraffitiPath path = paths.get(i);
+            if (path.mBounds == null || RectF.intersects(path.mBounds, bounds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 用ForkJoinPool并行绘制图块，图块区间不断二分，直到只剩一个图块。只在API 21以上加载
+     */
+    @TargetApi(21)
+    private static class ForkJoinRunner {
+
+        static void run(TiledExporter exporter, TileSink sink, int count, int parallelism) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new TileAction(exporter, sink, 0, count));
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @TargetApi(21)
+        private static class TileAction extends RecursiveAction {
+            private final TiledExporter mExporter;
+            private final TileSink mSink;
+            private final int mFrom, mTo;
+
+            TileAction(TiledExporter exporter, TileSink sink, int from, int to) {
+                mExporter = exporter;
+                mSink = sink;
+                mFrom = from;
+                mTo = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (mExporter.isCancelled()) {
+                    return;
+                }
+                if (mTo - mFrom == 1) {
+                    mExporter.renderTile(mFrom, mSink);
+                    return;
+                }
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new TileAction(mExporter, mSink, mFrom, mid), new TileAction(mExporter, mSink, mid, mTo));
+            }
+        }
+    }
+}
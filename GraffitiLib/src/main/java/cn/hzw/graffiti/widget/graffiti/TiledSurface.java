@@ -0,0 +1,337 @@
+package cn.hzw.graffiti.widget.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import cn.hzw.graffiti.util.BitmapPool;
+
+/**
+ * 稀疏分块的绘制表面，用于很大的图片
+ * 只有被笔画覆盖到的图块才会分配内存，未涂鸦的区域直接绘制原图。
+ * 常驻内存的图块按最近使用排序，超出内存上限时把最久未使用的图块压缩后换出，再次用到时解压还原。
+ * 绘制到view上的图块都常驻内存，同一帧中已经绘制的图块不会被换出，硬件加速时显示列表引用的始终是各自的图块图片。
+ */
+class TiledSurface extends GraffitiSurface {
+
+    /** 图块边长 */
+    static final int TILE_SIZE = 256;
+
+    /**
+     * 图块
+     */
+    private static class Tile {
+        int mIndex;
+        Bitmap mBitmap;
+        Canvas mCanvas;
+        long mDrawFrame; // 最近一次绘制到view上的帧，该帧中不能换出
+    }
+
+    private final Bitmap.Config mConfig = Bitmap.Config.RGB_565;
+    private final int mCols, mRows;
+    /** 常驻内存的图块上限（字节），当前帧可见的图块不受限制 */
+    private int mMaxBytes;
+    /** 每个图块占用的字节数，RGB_565每个像素2字节 */
+    private final int mTileBytes = TILE_SIZE * TILE_SIZE * 2;
+    private int mResidentCount;
+    /** drawTo()的帧序号 */
+    private long mFrame;
+
+    /** 常驻内存的图块，按索引 row*mCols+col 存放 */
+    private final Tile[] mTiles;
+    /** 常驻内存的图块，按访问顺序排列，第一个为最久未使用的图块 */
+    private final LinkedHashMap<Integer, Tile> mLru = new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+    /** 被换出的图块，压缩后的像素 */
+    private final byte[][] mEvicted;
+    /** reset()后空闲的图块，再次涂鸦时复用，不重新分配图片 */
+    private final ArrayList<Tile> mSpareTiles = new ArrayList<Tile>();
+
+    private final TileCodec mCodec = new TileCodec();
+    private ByteBuffer mBuffer;
+    /** 把被换出的图块绘制到图片上（read()、合成完整图片）时临时解压用，不用于view */
+    private Bitmap mScratch;
+    private Paint mSrcPaint;
+    private final Rect mSrcRect = new Rect();
+    private final RectF mDstRect = new RectF();
+    private boolean mReleased;
+    /** getBitmap()合成的完整图片，由表面持有，释放时放回图片池 */
+    private Bitmap mFullBitmap;
+
+    TiledSurface(Bitmap bitmap, int maxBytes) {
+        super(bitmap);
+        mCols = (bitmap.getWidth() + TILE_SIZE - 1) / TILE_SIZE;
+        mRows = (bitmap.getHeight() + TILE_SIZE - 1) / TILE_SIZE;
+        mTiles = new Tile[mCols * mRows];
+        mEvicted = new byte[mCols * mRows][];
+        mMaxBytes = maxBytes;
+        mSrcPaint = new Paint();
+        mSrcPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    @Override
+    Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * 修改常驻内存的图块上限，超出的图块在下次需要新图块时换出
+     */
+    void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    void draw(RectF bounds, Painter painter) {
+        int left = Math.max(0, (int) Math.floor(bounds.left)) / TILE_SIZE;
+        int top = Math.max(0, (int) Math.floor(bounds.top)) / TILE_SIZE;
+        int right = Math.min(getWidth() - 1, (int) Math.ceil(bounds.right)) / TILE_SIZE;
+        int bottom = Math.min(getHeight() - 1, (int) Math.ceil(bounds.bottom)) / TILE_SIZE;
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                Tile tile = obtainTile(row * mCols + col);
+                tile.mCanvas.save();
+                tile.mCanvas.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+                painter.paint(tile.mCanvas);
+                tile.mCanvas.restore();
+            }
+        }
+    }
+
+    @Override
+    void read(Canvas canvas, int x, int y, int width, int height, Paint paint) {
+        canvas.drawBitmap(mBitmap, -x, -y, paint);
+        int left = Math.max(0, x) / TILE_SIZE;
+        int top = Math.max(0, y) / TILE_SIZE;
+        int right = Math.min(getWidth() - 1, x + width - 1) / TILE_SIZE;
+        int bottom = Math.min(getHeight() - 1, y + height - 1) / TILE_SIZE;
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                drawTile(canvas, row * mCols + col, -x, -y, paint);
+            }
+        }
+    }
+
+    /**
+     * 可见的被换出的图块重新载入内存后再绘制，不在每一帧中重复解压；当前帧绘制过的图块不会被换出
+     */
+    @Override
+    void drawTo(Canvas canvas, float left, float top) {
+        mFrame++;
+        canvas.drawBitmap(mBitmap, left, top, null);
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] == null && mEvicted[i] == null) { // 没有涂鸦过的图块
+                continue;
+            }
+            float x = left + (i % mCols) * TILE_SIZE, y = top + (i / mCols) * TILE_SIZE;
+            if (canvas.quickReject(x, y, x + TILE_SIZE, y + TILE_SIZE, Canvas.EdgeType.BW)) {
+                continue;
+            }
+            Tile tile = obtainTile(i);
+            tile.mDrawFrame = mFrame;
+            drawTile(canvas, tile.mBitmap, i, left, top, null);
+        }
+    }
+
+    /**
+     * 把一个已经涂鸦过的图块绘制到图片上，被换出的图块只临时解压，不重新载入内存
+     * canvas必须是软件绘制的图片Canvas，绘制后不再引用临时解压的图片
+     */
+    private void drawTile(Canvas canvas, int index, float left, float top, Paint paint) {
+        Bitmap bitmap;
+        if (mTiles[index] != null) {
+            bitmap = mTiles[index].mBitmap;
+        } else if (mEvicted[index] != null) {
+            if (mScratch == null) {
+                mScratch = BitmapPool.getInstance().obtain(TILE_SIZE, TILE_SIZE, mConfig);
+            }
+            if (!decode(mEvicted[index], mScratch)) {
+                return;
+            }
+            bitmap = mScratch;
+        } else {
+            return;
+        }
+        drawTile(canvas, bitmap, index, left, top, paint);
+    }
+
+    private void drawTile(Canvas canvas, Bitmap bitmap, int index, float left, float top, Paint paint) {
+        int x = (index % mCols) * TILE_SIZE, y = (index / mCols) * TILE_SIZE;
+        // 边缘的图块超出图片的部分不绘制
+        mSrcRect.set(0, 0, Math.min(TILE_SIZE, getWidth() - x), Math.min(TILE_SIZE, getHeight() - y));
+        mDstRect.set(left + x, top + y, left + x + mSrcRect.right, top + y + mSrcRect.bottom);
+        canvas.drawBitmap(bitmap, mSrcRect, mDstRect, paint);
+    }
+
+    /**
+     * 获取可以绘制的图块，必要时分配或从压缩数据中还原
+     */
+    private Tile obtainTile(int index) {
+        Tile tile = mTiles[index];
+        if (tile == null) {
+            tile = evictOverBudget(); // 复用被换出图块的内存
+            if (tile == null) {
+                if (!mSpareTiles.isEmpty()) {
+                    tile = mSpareTiles.remove(mSpareTiles.size() - 1);
+                } else {
+                    tile = new Tile();
+                    tile.mBitmap = BitmapPool.getInstance().obtain(TILE_SIZE, TILE_SIZE, mConfig);
+                    tile.mCanvas = new Canvas(tile.mBitmap);
+                }
+            }
+            tile.mIndex = index;
+            if (mEvicted[index] == null || !decode(mEvicted[index], tile.mBitmap)) {
+                // 第一次涂鸦，从原图复制
+                tile.mCanvas.drawBitmap(mBitmap, -(index % mCols) * TILE_SIZE, -(index / mCols) * TILE_SIZE, mSrcPaint);
+            }
+            mEvicted[index] = null;
+            mTiles[index] = tile;
+            mLru.put(index, tile);
+            mResidentCount++;
+        } else {
+            mLru.get(index); // 移到最近使用的位置
+        }
+        return tile;
+    }
+
+    /**
+     * 再分配一个图块会超出上限时，按最久未使用的顺序换出图块，直到不超出上限
+     * 跳过当前帧绘制过的图块，它们可能还被显示列表引用
+     *
+     * @return 最后一个被换出的图块，用于复用内存；不需要或不能换出时返回null
+     */
+    private Tile evictOverBudget() {
+        Tile evicted = null;
+        Iterator<Tile> iterator = mLru.values().iterator();
+        while (mResidentCount > 0 && (mResidentCount + 1) * (long) mTileBytes > mMaxBytes && iterator.hasNext()) {
+            Tile tile = iterator.next();
+            if (tile.mDrawFrame == mFrame) {
+                continue;
+            }
+            iterator.remove();
+            ensureBuffer();
+            mBuffer.rewind();
+            tile.mBitmap.copyPixelsToBuffer(mBuffer);
+            mEvicted[tile.mIndex] = mCodec.compress(mBuffer.array(), mBuffer.position());
+            mTiles[tile.mIndex] = null;
+            mResidentCount--;
+            if (evicted != null) { // 上一帧超出上限的图块，只复用一个，其余的释放
+                BitmapPool.getInstance().put(evicted.mBitmap);
+            }
+            evicted = tile;
+        }
+        return evicted;
+    }
+
+    private boolean decode(byte[] data, Bitmap bitmap) {
+        ensureBuffer();
+        if (!mCodec.decompress(data, mBuffer.array())) {
+            return false;
+        }
+        mBuffer.rewind();
+        bitmap.copyPixelsFromBuffer(mBuffer);
+        return true;
+    }
+
+    private void ensureBuffer() {
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.allocate(mTileBytes);
+        }
+    }
+
+    /**
+     * 恢复成原图，常驻内存的图块留作复用
+     */
+    @Override
+    void reset() {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] != null) {
+                mSpareTiles.add(mTiles[i]);
+                mTiles[i] = null;
+            }
+            mEvicted[i] = null;
+        }
+        mLru.clear();
+        mResidentCount = 0;
+    }
+
+    /**
+     * 合成完整的图片，图片由表面持有并在之后的调用中复用，调用者不能回收
+     * 只在需要完整图片时才分配，平时不占用内存
+     */
+    @Override
+    Bitmap getBitmap() {
+        if (mFullBitmap == null) {
+            mFullBitmap = BitmapPool.getInstance().obtain(getWidth(), getHeight(), mConfig);
+        }
+        drawFull(mFullBitmap);
+        return mFullBitmap;
+    }
+
+    /**
+     * 合成完整的图片，每次调用都会创建新的图片，由调用者负责回收
+     */
+    @Override
+    Bitmap copyBitmap() {
+        Bitmap bitmap = BitmapPool.getInstance().obtain(getWidth(), getHeight(), mConfig);
+        drawFull(bitmap);
+        return bitmap;
+    }
+
+    private void drawFull(Bitmap bitmap) {
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawBitmap(mBitmap, 0, 0, mSrcPaint);
+        for (int i = 0; i < mTiles.length; i++) {
+            drawTile(canvas, i, 0, 0, null);
+        }
+    }
+
+    /**
+     * 常驻内存和空闲的图块，加上被换出的图块压缩后的大小
+     */
+    @Override
+    long getByteCount() {
+        long bytes = (long) (mResidentCount + mSpareTiles.size()) * mTileBytes;
+        for (int i = 0; i < mEvicted.length; i++) {
+            byte[] data = mEvicted[i];
+            if (data != null) {
+                bytes += data.length;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    boolean isRecycled() {
+        return mReleased || mBitmap.isRecycled();
+    }
+
+    @Override
+    void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        reset();
+        for (int i = 0; i < mSpareTiles.size(); i++) {
+            BitmapPool.getInstance().put(mSpareTiles.get(i).mBitmap);
+        }
+        mSpareTiles.clear();
+        if (mScratch != null) {
+            BitmapPool.getInstance().put(mScratch);
+            mScratch = null;
+        }
+        if (mFullBitmap != null) {
+            BitmapPool.getInstance().put(mFullBitmap);
+            mFullBitmap = null;
+        }
+    }
+}
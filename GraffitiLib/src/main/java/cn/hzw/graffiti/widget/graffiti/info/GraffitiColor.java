@@ -22,6 +22,8 @@ public class GraffitiColor {
     public GraffitiColor.Type mType;
     public Shader.TileMode mTileX = Shader.TileMode.MIRROR;
     public Shader.TileMode mTileY = Shader.TileMode.MIRROR;  // 镜像
+    /** 图片底色的shader缓存，copy()得到的颜色共享同一个缓存 */
+    private ShaderCache mShaderCache;
 
     public GraffitiColor(int color) {
         mType = GraffitiColor.Type.COLOR;
@@ -44,9 +46,12 @@ public class GraffitiColor {
         if (mType == GraffitiColor.Type.COLOR) {
             paint.setColor(mColor);
         } else if (mType == GraffitiColor.Type.BITMAP) {
-            BitmapShader shader = new BitmapShader(mBitmap, mTileX, mTileY);
-            shader.setLocalMatrix(matrix);
-            paint.setShader(shader);
+            ShaderCache cache = mShaderCache;
+            if (cache == null || !cache.matches(mBitmap, mTileX, mTileY)) { // 图片或平铺方式改变了
+                cache = new ShaderCache(mBitmap, mTileX, mTileY);
+                mShaderCache = cache;
+            }
+            paint.setShader(cache.getShader(matrix));
         }
     }
 
@@ -88,6 +93,48 @@ public class GraffitiColor {
         }
         color.mTileX = mTileX;
         color.mTileY = mTileY;
+        if (mType == GraffitiColor.Type.BITMAP) { // 先创建缓存再共享，之后的副本都不会再创建shader
+            if (mShaderCache == null || !mShaderCache.matches(mBitmap, mTileX, mTileY)) {
+                mShaderCache = new ShaderCache(mBitmap, mTileX, mTileY);
+            }
+            color.mShaderCache = mShaderCache;
+        }
         return color;
     }
+
+    /**
+     * 以图片和平铺方式为键的shader缓存
+     * 没有变换矩阵的shader创建后不再修改，提交笔画时可以在多个线程中共享；
+     * 带变换矩阵的shader每次原地更新矩阵，只用于在主线程中绘制触摸时的路径
+     */
+    private static class ShaderCache {
+        private final Bitmap mBitmap;
+        private final Shader.TileMode mTileX, mTileY;
+        private BitmapShader mShader;
+        private BitmapShader mMatrixShader;
+
+        ShaderCache(Bitmap bitmap, Shader.TileMode tileX, Shader.TileMode tileY) {
+            mBitmap = bitmap;
+            mTileX = tileX;
+            mTileY = tileY;
+        }
+
+        boolean matches(Bitmap bitmap, Shader.TileMode tileX, Shader.TileMode tileY) {
+            return mBitmap == bitmap && mTileX == tileX && mTileY == tileY;
+        }
+
+        synchronized BitmapShader getShader(Matrix matrix) {
+            if (matrix == null) {
+                if (mShader == null) {
+                    mShader = new BitmapShader(mBitmap, mTileX, mTileY);
+                }
+                return mShader;
+            }
+            if (mMatrixShader == null) {
+                mMatrixShader = new BitmapShader(mBitmap, mTileX, mTileY);
+            }
+            mMatrixShader.setLocalMatrix(matrix);
+            return mMatrixShader;
+        }
+    }
 }
@@ -2,6 +2,10 @@ package cn.hzw.graffiti.widget.graffiti.info;
 
 import android.graphics.Matrix;
 import android.graphics.Path;
+import android.graphics.RectF;
+
+import cn.hzw.graffiti.core.PathSink;
+import cn.hzw.graffiti.core.StrokeBuffer;
 
 /**
  * @author hzzhengrui
@@ -13,10 +17,24 @@ public class GraffitiPath {
     public Shape mShape; // 画笔形状
     public float mStrokeWidth; // 大小
     public GraffitiColor mColor; // 颜色
-    public Path mPath; // 画笔的路径
     public float mSx, mSy; // 映射后的起始坐标，（手指点击）
     public float mDx, mDy; // 映射后的终止坐标，（手指抬起）
     public Matrix mMatrix; //　仿制图片的偏移矩阵
+    public RectF mBounds; // 笔画覆盖的区域（图片坐标，包含笔画宽度），提交时计算一次
+
+    /** 手写笔画的采样点（图片坐标），非手写笔画为null */
+    private StrokeBuffer mStroke;
+
+    /**
+     * 由采样点生成的路径，mPathPointCount为已经连接到路径中的采样点个数
+     * 手写笔画的路径在第一次绘制时才生成，直接读取该字段可能为null或者缺少最新的采样点
+     *
+     * @deprecated 只为兼容原来的代码保留，只读，使用{@link #getPath()}
+     */
+    @Deprecated
+    public Path mPath;
+    private int mPathPointCount;
+    private PathSink mPathSink;
 
     public static GraffitiPath toShape(Pen pen, Shape shape, float width, GraffitiColor color,
                                        float sx, float sy, float dx, float dy, Matrix matrix) {
@@ -33,6 +51,9 @@ public class GraffitiPath {
         return path;
     }
 
+    /**
+     * 由已经生成的路径创建笔画，这样的笔画没有采样点
+     */
     public static GraffitiPath toPath(Pen pen, Shape shape, float width, GraffitiColor color, Path p, Matrix matrix) {
         GraffitiPath path = new GraffitiPath();
         path.mPen = pen;
@@ -43,4 +64,157 @@ public class GraffitiPath {
         path.mMatrix = matrix;
         return path;
     }
+
+    /**
+     * 创建手写笔画，之后通过addPoint()添加采样点
+     *
+     * @param withPressure 是否记录压力
+     */
+    public static GraffitiPath toStroke(Pen pen, Shape shape, float width, GraffitiColor color, Matrix matrix, boolean withPressure) {
+        GraffitiPath path = new GraffitiPath();
+        path.mPen = pen;
+        path.mShape = shape;
+        path.mStrokeWidth = width;
+        path.mColor = color;
+        path.mMatrix = matrix;
+        path.mStroke = new StrokeBuffer(withPressure);
+        return path;
+    }
+
+    /**
+     * 添加采样点
+     *
+     * @param x        图片坐标
+     * @param y        图片坐标
+     * @param time     采样时间（毫秒）
+     * @param pressure 压力，不记录压力时忽略
+     */
+    public void addPoint(float x, float y, long time, float pressure) {
+        if (mStroke == null) {
+            throw new RuntimeException("not a stroke, use toStroke()");
+        }
+        mStroke.addPoint(x, y, time, pressure);
+    }
+
+    public int getPointCount() {
+        return mStroke == null ? 0 : mStroke.getPointCount();
+    }
+
+    public float getX(int i) {
+        return mStroke.getX(i);
+    }
+
+    public float getY(int i) {
+        return mStroke.getY(i);
+    }
+
+    /**
+     * 采样时间，相对于第一个采样点的毫秒数
+     */
+    public float getTime(int i) {
+        return mStroke.getTime(i);
+    }
+
+    /**
+     * 压力，没有记录压力时返回1
+     */
+    public float getPressure(int i) {
+        return mStroke.getPressure(i);
+    }
+
+    public boolean hasPressure() {
+        return mStroke != null && mStroke.hasPressure();
+    }
+
+    public long getStartTime() {
+        return mStroke == null ? 0 : mStroke.getStartTime();
+    }
+
+    /**
+     * 采样点的原始数据，每个采样点占用getStride()个float，只读
+     */
+    public float[] getPoints() {
+        return mStroke == null ? null : mStroke.getPoints();
+    }
+
+    public int getStride() {
+        return mStroke == null ? 0 : mStroke.getStride();
+    }
+
+    /**
+     * 获取笔画的路径，第一次调用或添加了新的采样点后才连接新的片段
+     * 每个采样点作为控制点，相邻采样点的中点作为终点，与触摸时绘制的路径一致。
+     * 提交后可能同时在主线程和渲染线程中调用，因此需要同步
+     */
+    public synchronized Path getPath() {
+        if (mStroke == null) {
+            return mPath;
+        }
+        if (mPath == null) {
+            mPath = new Path();
+            mPathPointCount = 0;
+            mPathSink = new AndroidPathSink(mPath);
+        }
+        mPathPointCount = mStroke.appendPath(mPathSink, mPathPointCount);
+        return mPath;
+    }
+
+    /**
+     * 用Ramer-Douglas-Peucker算法删除采样点，见{@link StrokeBuffer#simplify(float)}
+     *
+     * @param tolerance 允许的误差（图片坐标中的像素），小于等于0时不简化
+     * @return 删除的采样点个数
+     */
+    public synchronized int simplify(float tolerance) {
+        if (mStroke == null) {
+            return 0;
+        }
+        int removed = mStroke.simplify(tolerance);
+        if (removed > 0) { // 重新生成路径
+            mPath = null;
+            mPathPointCount = 0;
+        }
+        return removed;
+    }
+
+    /**
+     * 计算手写笔画的控制点所在的区域（不包含笔画宽度），曲线一定在该区域内
+     */
+    public void computeBounds(RectF rect) {
+        if (mStroke == null) {
+            if (mPath != null) {
+                mPath.computeBounds(rect, false);
+            } else {
+                rect.setEmpty();
+            }
+            return;
+        }
+        float[] bounds = new float[4];
+        if (mStroke.computeBounds(bounds)) {
+            rect.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+        } else {
+            rect.setEmpty();
+        }
+    }
+
+    /**
+     * 把路径片段写入android.graphics.Path
+     */
+    private static class AndroidPathSink implements PathSink {
+        private final Path mPath;
+
+        AndroidPathSink(Path path) {
+            mPath = path;
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            mPath.moveTo(x, y);
+        }
+
+        @Override
+        public void quadTo(float x1, float y1, float x2, float y2) {
+            mPath.quadTo(x1, y1, x2, y2);
+        }
+    }
 }